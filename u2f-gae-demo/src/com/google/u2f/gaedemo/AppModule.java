@@ -15,7 +15,9 @@ import com.google.template.soy.SoyModule;
 import com.google.template.soy.tofu.SoyTofu;
 import com.google.u2f.gaedemo.impl.ChallengeGeneratorImpl;
 import com.google.u2f.gaedemo.impl.DataStoreImpl;
+import com.google.u2f.gaedemo.impl.SessionKeyManager;
 import com.google.u2f.gaedemo.storage.SecretKeys;
+import com.google.u2f.gaedemo.storage.TokenCounter;
 import com.google.u2f.gaedemo.storage.UserTokens;
 import com.google.u2f.server.ChallengeGenerator;
 import com.google.u2f.server.Crypto;
@@ -31,6 +33,7 @@ public class AppModule extends AbstractModule {
   static {
     ObjectifyService.register(UserTokens.class);
     ObjectifyService.register(SecretKeys.class);
+    ObjectifyService.register(TokenCounter.class);
   }
 
   @Override
@@ -61,18 +64,24 @@ public class AppModule extends AbstractModule {
     return new BouncyCastleCrypto();
   }
 
+  @Provides @Singleton
+  public SessionKeyManager provideSessionKeyManager() {
+    return new SessionKeyManager(DataStoreImpl.SESSION_TTL_MILLIS);
+  }
+
   @Provides
-  public DataStore provideDataStore() {
-    return new DataStoreImpl();
+  public DataStore provideDataStore(SessionKeyManager sessionKeyManager) {
+    return new DataStoreImpl(sessionKeyManager);
   }
 
   @Provides @Singleton
   public U2FServer provideU2FServer(ChallengeGenerator challengeGenerator, Crypto crypto, DataStore dataStore) {
-    return new U2FServerReferenceImpl(challengeGenerator, dataStore, crypto,
-        ImmutableSet.of(
-            // this implementation will only accept signatures from the following origins:
-            "http://localhost:8888",
-            "https://u2fdemo.appspot.com",
-            "https://crxjs-dot-u2fdemo.appspot.com"));
+    // this implementation will only accept signatures from the following origins, and
+    // uses each of them as an appId (see BeginEnrollServlet and BeginSignServlet):
+    ImmutableSet<String> origins = ImmutableSet.of(
+        "http://localhost:8888",
+        "https://u2fdemo.appspot.com",
+        "https://crxjs-dot-u2fdemo.appspot.com");
+    return new U2FServerReferenceImpl(challengeGenerator, dataStore, crypto, origins, origins);
   }
 }
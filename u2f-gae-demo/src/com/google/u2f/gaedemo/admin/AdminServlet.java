@@ -21,16 +21,19 @@ import com.google.inject.Singleton;
 import com.google.template.soy.data.SoyMapData;
 import com.google.template.soy.tofu.SoyTofu;
 import com.google.template.soy.tofu.SoyTofu.Renderer;
+import com.google.u2f.gaedemo.impl.SessionKeyManager;
 
 @SuppressWarnings("serial")
 @Singleton
 public class AdminServlet extends HttpServlet {
   private SoyTofu tofu;
+  private SessionKeyManager sessionKeyManager;
   private UserService userService =  UserServiceFactory.getUserService();
 
   @Inject
-  public AdminServlet(SoyTofu tofu) {
+  public AdminServlet(SoyTofu tofu, SessionKeyManager sessionKeyManager) {
     this.tofu = tofu;
+    this.sessionKeyManager = sessionKeyManager;
   }
 
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -55,7 +58,17 @@ public class AdminServlet extends HttpServlet {
   protected void doPost(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
 
+    if (!userService.isUserAdmin()) {
+      resp.sendError(HttpServletResponse.SC_UNAUTHORIZED, "must be admin");
+      return;
+    }
+
     String command = req.getParameter("command");
+    if ("rotateSessionKey".equals(command)) {
+      sessionKeyManager.rotate();
+      resp.sendRedirect(req.getRequestURI());
+      return;
+    }
     resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "unknown command: " + command);
   }
 }
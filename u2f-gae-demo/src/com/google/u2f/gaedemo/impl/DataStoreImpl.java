@@ -8,44 +8,34 @@ package com.google.u2f.gaedemo.impl;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SealedObject;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.u2f.gaedemo.storage.SecretKeys;
+import com.google.common.collect.Lists;
+import com.google.u2f.gaedemo.storage.TokenCounter;
 import com.google.u2f.gaedemo.storage.TokenStorageData;
 import com.google.u2f.gaedemo.storage.UserTokens;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
+import com.googlecode.objectify.Work;
 
 public class DataStoreImpl implements DataStore {
+  public static final long SESSION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
-  private final SecureRandom random = new SecureRandom();
+  private final SessionKeyManager sessionKeyManager;
+
+  public DataStoreImpl(SessionKeyManager sessionKeyManager) {
+    this.sessionKeyManager = sessionKeyManager;
+  }
 
   @Override
   public void addTrustedCertificate(X509Certificate certificate) {
@@ -59,56 +49,12 @@ public class DataStoreImpl implements DataStore {
 
   @Override
   public String storeSessionData(EnrollSessionData sessionData) {
-
-    SecretKey key = new SecretKeySpec(SecretKeys.get().sessionEncryptionKey(), "AES");
-    byte[] ivBytes = new byte[16];
-    random.nextBytes(ivBytes);
-    final IvParameterSpec IV = new IvParameterSpec(ivBytes);
-    Cipher cipher;
-    try {
-      cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(Cipher.ENCRYPT_MODE, key, IV);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException |
-        InvalidKeyException | InvalidAlgorithmParameterException e) {
-      throw new RuntimeException(e);
-    }
-
-    SealedObject sealed;
-    try {
-      sealed = new SealedObject(sessionData, cipher);
-    } catch (IllegalBlockSizeException | IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    ByteArrayOutputStream out;
-    try {
-      out = new ByteArrayOutputStream();
-      ObjectOutputStream outer = new ObjectOutputStream(out);
-
-      outer.writeObject(sealed);
-      outer.flush();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    return Base64.encodeBase64URLSafeString(out.toByteArray());
+    return sessionKeyManager.getSessionTokenCodec().encode(sessionData);
   }
 
   @Override
   public EnrollSessionData getEnrollSessionData(String sessionId) {
-    SecretKey key = new SecretKeySpec(SecretKeys.get().sessionEncryptionKey(), "AES");
-
-    byte[] serialized = Base64.decodeBase64(sessionId);
-    ByteArrayInputStream inner = new ByteArrayInputStream(serialized);
-    try {
-      ObjectInputStream in = new ObjectInputStream(inner);
-
-      SealedObject sealed = (SealedObject) in.readObject();
-      return (EnrollSessionData) sealed.getObject(key);
-    } catch (InvalidKeyException | ClassNotFoundException
-        | NoSuchAlgorithmException | IOException e) {
-      throw new RuntimeException(e);
-    }
+    return sessionKeyManager.getSessionTokenCodec().decode(sessionId);
   }
 
   @Override
@@ -116,6 +62,25 @@ public class DataStoreImpl implements DataStore {
     return (SignSessionData) getEnrollSessionData(sessionId);
   }
 
+  /**
+   * Sessions are sealed into their session ids rather than stored, so they cannot be removed;
+   * consuming one only checks that it has not expired.
+   */
+  @Override
+  public EnrollSessionData consumeEnrollSessionData(String sessionId) {
+    EnrollSessionData sessionData = getEnrollSessionData(sessionId);
+    if (sessionData == null) {
+      return null;
+    }
+    long age = System.currentTimeMillis() - sessionData.getCreationTime();
+    return (age < SESSION_TTL_MILLIS) ? sessionData : null;
+  }
+
+  @Override
+  public SignSessionData consumeSignSessionData(String sessionId) {
+    return (SignSessionData) consumeEnrollSessionData(sessionId);
+  }
+
   @Override
   public void addSecurityKeyData(String accountName,
       SecurityKeyData securityKeyData) {
@@ -123,23 +88,46 @@ public class DataStoreImpl implements DataStore {
     TokenStorageData newToken = new TokenStorageData(securityKeyData);
     tokens.addToken(newToken);
 
-    ofy().save().entity(tokens).now();
+    ofy().save().entities(tokens, new TokenCounter(
+        accountName, securityKeyData.getKeyHandle(), securityKeyData.getCounter())).now();
   }
 
   @Override
   public List<SecurityKeyData> getSecurityKeyData(String accountName) {
+    Collection<TokenStorageData> tokens = getAllTokens(accountName);
+    List<String> counterIds = Lists.newArrayListWithCapacity(tokens.size());
+    for (TokenStorageData token : tokens) {
+      counterIds.add(TokenCounter.id(accountName, token.getKeyHandle()));
+    }
+    Map<String, TokenCounter> counters = ofy().load().type(TokenCounter.class).ids(counterIds);
     ImmutableList.Builder<SecurityKeyData> result = ImmutableList.builder();
-    for (TokenStorageData tokenStorageData : getAllTokens(accountName)) {
-      result.add(tokenStorageData.getSecurityKeyData());
+    for (TokenStorageData token : tokens) {
+      TokenCounter counter = counters.get(TokenCounter.id(accountName, token.getKeyHandle()));
+      result.add(token.getSecurityKeyData(getCounter(token, counter)));
     }
     return result.build();
   }
 
+  @Override
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(String accountName, byte[] keyHandle) {
+    TokenStorageData token = getUserTokens(accountName).getTokenByKeyHandle(keyHandle);
+    if (token == null) {
+      return null;
+    }
+    return token.getSecurityKeyData(getCounter(token, loadCounter(accountName, keyHandle)));
+  }
+
   @Override
   public void removeSecuityKey(String accountName, byte[] publicKey) {
     UserTokens tokens = getUserTokens(accountName);
+    TokenStorageData token = tokens.getTokenByPublicKey(publicKey);
+    if (token == null) {
+      return;
+    }
     tokens.removeToken(publicKey);
     ofy().save().entity(tokens).now();
+    ofy().delete().type(TokenCounter.class)
+        .id(TokenCounter.id(accountName, token.getKeyHandle())).now();
   }
 
   private UserTokens getUserTokens(String accountName) {
@@ -152,11 +140,45 @@ public class DataStoreImpl implements DataStore {
     return getUserTokens(accountName).getTokens();
   }
 
+  private TokenCounter loadCounter(String accountName, byte[] keyHandle) {
+    return ofy().load().type(TokenCounter.class).id(TokenCounter.id(accountName, keyHandle))
+        .now();
+  }
+
+  /** Tokens registered before counters had their own entity keep their counter until used. */
+  private static int getCounter(TokenStorageData token, TokenCounter counter) {
+    return (counter == null) ? token.getCounter() : counter.getCounter();
+  }
+
+  @Deprecated
   @Override
   public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
       int newCounterValue) {
-    UserTokens tokens = getUserTokens(accountName);
-    tokens.updateCounter(publicKey, newCounterValue);
-    ofy().save().entity(tokens).now();
+    TokenStorageData token = getUserTokens(accountName).getTokenByPublicKey(publicKey);
+    if (token != null) {
+      ofy().save().entity(
+          new TokenCounter(accountName, token.getKeyHandle(), newCounterValue)).now();
+    }
+  }
+
+  @Override
+  public boolean advanceCounterIfGreater(final String accountName, final byte[] keyHandle,
+      final int newCounterValue) {
+    final TokenStorageData token = getUserTokens(accountName).getTokenByKeyHandle(keyHandle);
+    if (token == null) {
+      return false;
+    }
+    // the transaction covers only the counter entity, and retries on contention, so concurrent
+    // sign responses that replay the same counter cannot both succeed
+    return ofy().transact(new Work<Boolean>() {
+      @Override
+      public Boolean run() {
+        if (newCounterValue <= getCounter(token, loadCounter(accountName, keyHandle))) {
+          return false;
+        }
+        ofy().save().entity(new TokenCounter(accountName, keyHandle, newCounterValue)).now();
+        return true;
+      }
+    });
   }
 }
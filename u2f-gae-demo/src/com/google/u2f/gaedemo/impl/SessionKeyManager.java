@@ -0,0 +1,82 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.gaedemo.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.u2f.gaedemo.storage.SecretKeys;
+import com.google.u2f.gaedemo.storage.SessionKey;
+import com.google.u2f.server.impl.SessionTokenCodec;
+
+/**
+ * Keeps the session keys in memory, so that sealing and opening a session does not read them
+ * from the datastore each time.
+ *
+ * <p>Loaded keys expire after a few minutes, and the next request that needs them reloads them.
+ * Expiry rather than a background refresh bounds how stale an idle server's keys can be, so a
+ * rotated key, which is only used for sealing once every server has had time to load it, is
+ * known to every server before any of them seals with it. Old keys stay until their sessions
+ * have expired, so keys can be rotated while servers keep running.
+ */
+public class SessionKeyManager {
+  public static final long REFRESH_INTERVAL_MINUTES = 5;
+  // longer than a refresh interval, so that every server knows a key before it is used
+  private static final long ACTIVATION_DELAY_MILLIS =
+      TimeUnit.MINUTES.toMillis(2 * REFRESH_INTERVAL_MINUTES);
+
+  private final LoadingCache<String, SessionTokenCodec> codecs;
+  private final long sessionTtlMillis;
+
+  /**
+   * @param sessionTtlMillis how long sessions are valid, and so how long retired keys are kept
+   */
+  public SessionKeyManager(long sessionTtlMillis) {
+    this.sessionTtlMillis = sessionTtlMillis;
+    // reloaded on the request thread, since threads started for a request die with it
+    this.codecs = CacheBuilder.newBuilder()
+        .expireAfterWrite(REFRESH_INTERVAL_MINUTES, TimeUnit.MINUTES)
+        .build(new CacheLoader<String, SessionTokenCodec>() {
+          @Override
+          public SessionTokenCodec load(String id) {
+            return newSessionTokenCodec(SecretKeys.get().sessionKeys());
+          }
+        });
+  }
+
+  /** Returns a codec for the current session keys. */
+  public SessionTokenCodec getSessionTokenCodec() {
+    return codecs.getUnchecked("singleton");
+  }
+
+  /** Adds a new session key, which servers start using once they all have it. */
+  public void rotate() {
+    // servers may seal sessions with the old key until their next refresh
+    SecretKeys.rotateSessionKey(ACTIVATION_DELAY_MILLIS,
+        sessionTtlMillis + TimeUnit.MINUTES.toMillis(REFRESH_INTERVAL_MINUTES));
+    codecs.invalidateAll();
+  }
+
+  private static SessionTokenCodec newSessionTokenCodec(List<SessionKey> sessionKeys) {
+    long now = System.currentTimeMillis();
+    Map<Integer, byte[]> keys = Maps.newHashMap();
+    // seal with the newest active key; the first key is active from the start
+    int currentKeyId = sessionKeys.get(0).getId();
+    for (SessionKey sessionKey : sessionKeys) {
+      keys.put(sessionKey.getId(), sessionKey.getKey());
+      if (sessionKey.getActivationTime() <= now) {
+        currentKeyId = sessionKey.getId();
+      }
+    }
+    return new SessionTokenCodec(keys, currentKeyId);
+  }
+}
@@ -9,7 +9,10 @@ package com.google.u2f.gaedemo.storage;
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
 import java.security.SecureRandom;
+import java.util.List;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
@@ -19,9 +22,13 @@ import com.googlecode.objectify.annotation.Ignore;
 public class SecretKeys {
 
   private static final int AES_KEY_SIZE = 16;
+  // key ids are one byte in session tokens
+  private static final int SESSION_KEY_IDS = 256;
 
   @Id private String id;
+  // the session key from before session keys had versions; it has id 0
   private byte[] sessionEncryptionKey;
+  private List<SessionKey> sessionKeys = Lists.newArrayList();
 
   @Ignore private SecureRandom random = new SecureRandom();
 
@@ -53,6 +60,29 @@ public class SecretKeys {
     }
   }
 
+  /**
+   * Adds a new session key, which servers start sealing sessions with after
+   * {@code activationDelayMillis}, and drops keys that were superseded more than
+   * {@code retirementDelayMillis} ago.
+   */
+  public static SecretKeys rotateSessionKey(final long activationDelayMillis,
+      final long retirementDelayMillis) {
+    return ofy().transact(new Work<SecretKeys>() {
+      @Override
+      public SecretKeys run() {
+        SecretKeys keys = ofy().load().type(SecretKeys.class).id("singleton").now();
+        if (keys == null) {
+          keys = new SecretKeys();
+          keys.generateNewKeys();
+        }
+        long now = System.currentTimeMillis();
+        keys.addSessionKey(now + activationDelayMillis, now - retirementDelayMillis);
+        ofy().save().entity(keys).now();
+        return keys;
+      }
+    });
+  }
+
   public SecretKeys() {
     id = "singleton";
   }
@@ -64,7 +94,24 @@ public class SecretKeys {
     }
   }
 
-  public byte[] sessionEncryptionKey() {
-    return sessionEncryptionKey;
+  /** The versions of the session key, oldest first. */
+  public List<SessionKey> sessionKeys() {
+    if (sessionKeys.isEmpty() && sessionEncryptionKey != null) {
+      return ImmutableList.of(new SessionKey(0, sessionEncryptionKey, 0L));
+    }
+    return ImmutableList.copyOf(sessionKeys);
+  }
+
+  private void addSessionKey(long activationTime, long retirementTime) {
+    List<SessionKey> keys = Lists.newArrayList(sessionKeys());
+    // a key may go once the key after it has been active long enough for its sessions to expire
+    while (keys.size() > 1 && keys.get(1).getActivationTime() < retirementTime) {
+      keys.remove(0);
+    }
+    int newId = (keys.get(keys.size() - 1).getId() + 1) % SESSION_KEY_IDS;
+    byte[] newKey = new byte[AES_KEY_SIZE];
+    random.nextBytes(newKey);
+    keys.add(new SessionKey(newId, newKey, activationTime));
+    sessionKeys = keys;
   }
 }
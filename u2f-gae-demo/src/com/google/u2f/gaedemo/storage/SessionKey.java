@@ -0,0 +1,37 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.gaedemo.storage;
+
+/** One version of the key that sessions are sealed with. */
+public class SessionKey {
+
+  private int id;
+  private byte[] key;
+  // when servers start sealing sessions with this key, in milliseconds since the epoch
+  private long activationTime;
+
+  // used by the storage layer
+  public SessionKey() { }
+
+  public SessionKey(int id, byte[] key, long activationTime) {
+    this.id = id;
+    this.key = key;
+    this.activationTime = activationTime;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public byte[] getKey() {
+    return key;
+  }
+
+  public long getActivationTime() {
+    return activationTime;
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.gaedemo.storage;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * The counter of one token, kept apart from {@link UserTokens} so that a sign-in writes only
+ * this small entity. Tokens registered before counters moved here have no counter entity until
+ * their first sign-in; until then their counter is the one in {@link TokenStorageData}.
+ */
+@Entity
+public class TokenCounter {
+
+  @Id private String id;
+  private int counter;
+
+  // used by the storage layer
+  public TokenCounter() { }
+
+  public TokenCounter(String accountName, byte[] keyHandle, int counter) {
+    this.id = id(accountName, keyHandle);
+    this.counter = counter;
+  }
+
+  /** The id of the counter of the account's token with the given key handle. */
+  public static String id(String accountName, byte[] keyHandle) {
+    // key handles are web-safe base64, which has no spaces
+    return accountName + ' ' + Base64.encodeBase64URLSafeString(keyHandle);
+  }
+
+  public int getCounter() {
+    return counter;
+  }
+}
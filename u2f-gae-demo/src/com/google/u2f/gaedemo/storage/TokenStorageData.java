@@ -47,11 +47,28 @@ public class TokenStorageData {
     this.counter = tokenData.getCounter();
   }
 
-  public void updateCounter(int newCounterValue) {
-    counter = newCounterValue;
+  /**
+   * The counter the token had when it was registered, or, for tokens registered before counters
+   * moved to {@link TokenCounter}, before that.
+   */
+  public int getCounter() {
+    return counter;
+  }
+
+  public byte[] getKeyHandle() {
+    return keyHandle;
+  }
+
+  public byte[] getPublicKey() {
+    return publicKey;
   }
 
   public SecurityKeyData getSecurityKeyData() {
+    return getSecurityKeyData(counter);
+  }
+
+  /** As {@link #getSecurityKeyData()}, with the counter kept in {@link TokenCounter}. */
+  public SecurityKeyData getSecurityKeyData(int counter) {
     X509Certificate x509cert = parseCertificate(attestationCert);
     return new SecurityKeyData(enrollmentTime, transports, keyHandle,
         publicKey, x509cert, counter);
@@ -6,20 +6,26 @@
 
 package com.google.u2f.gaedemo.storage;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 
 @Entity
 public class UserTokens {
 
   @Id String userId;
   List<TokenStorageData> tokens = Lists.newArrayList();
+  // built on first lookup
+  @Ignore Map<ByteBuffer, TokenStorageData> tokensByKeyHandle;
 
   public UserTokens() {}
 
@@ -32,24 +38,39 @@ public class UserTokens {
   }
 
   public void removeToken(byte[] publicKey) {
+    TokenStorageData token = getTokenByPublicKey(publicKey);
+    if (token != null) {
+      tokens.remove(token);
+      tokensByKeyHandle = null;
+    }
+  }
+
+  public TokenStorageData getTokenByPublicKey(byte[] publicKey) {
     for (TokenStorageData token : tokens) {
-      if (Arrays.equals(token.getSecurityKeyData().getPublicKey(), publicKey)) {
-        tokens.remove(token);
-        break;
+      if (Arrays.equals(token.getPublicKey(), publicKey)) {
+        return token;
       }
     }
+    return null;
   }
 
-  public void updateCounter(byte[] publicKey, int newCounterValue) {
-    for (TokenStorageData token : tokens) {
-      if (Arrays.equals(token.getSecurityKeyData().getPublicKey(), publicKey)) {
-        token.updateCounter(newCounterValue);
-        break;
+  public TokenStorageData getTokenByKeyHandle(byte[] keyHandle) {
+    if (tokensByKeyHandle == null) {
+      Map<ByteBuffer, TokenStorageData> index = Maps.newHashMapWithExpectedSize(tokens.size());
+      for (TokenStorageData token : tokens) {
+        ByteBuffer tokenKeyHandle = ByteBuffer.wrap(token.getKeyHandle());
+        // the first registration of a key handle wins, as in a search from the start
+        if (!index.containsKey(tokenKeyHandle)) {
+          index.put(tokenKeyHandle, token);
+        }
       }
+      tokensByKeyHandle = index;
     }
+    return tokensByKeyHandle.get(ByteBuffer.wrap(keyHandle));
   }
 
   public void addToken(TokenStorageData token) {
     tokens.add(token);
+    tokensByKeyHandle = null;
   }
 }
@@ -0,0 +1,22 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.codec;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Turns the DER encoding of an attestation certificate into an {@link X509Certificate}, so that
+ * callers can share or cache certificates across decoded messages.
+ */
+public interface CertificateResolver {
+  /**
+   * Returns the certificate encoded in {@code length} bytes of {@code data} starting at
+   * {@code offset}. Implementations must not keep a reference to {@code data}.
+   */
+  X509Certificate resolve(byte[] data, int offset, int length) throws CertificateException;
+}
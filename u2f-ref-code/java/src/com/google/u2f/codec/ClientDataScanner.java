@@ -0,0 +1,484 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.codec;
+
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Charsets;
+import com.google.u2f.U2FException;
+
+/**
+ * Reads the fields a server checks out of ClientData, in a single pass over the UTF-8 encoded
+ * JSON and without building a JSON tree.
+ *
+ * <p>The whole input is validated as a single JSON object, with nothing but whitespace after
+ * it. Only the offsets of {@code typ}, {@code challenge}, {@code origin} and {@code cid_pubkey}
+ * are recorded; all other members are checked and skipped. Values are decoded when asked for,
+ * and unescaped string values can be compared in place.
+ */
+public class ClientDataScanner {
+  private static final int MAX_NESTING_DEPTH = 32;
+
+  private static final int TYPE = 0;
+  private static final int CHALLENGE = 1;
+  private static final int ORIGIN = 2;
+  private static final int CHANNEL_ID = 3;
+
+  private static final byte[][] FIELD_NAMES = {
+      ascii(ClientDataCodec.JSON_PROPERTY_REQUEST_TYPE),
+      ascii(ClientDataCodec.JSON_PROPERTY_SERVER_CHALLENGE_BASE64),
+      ascii(ClientDataCodec.JSON_PROPERTY_SERVER_ORIGIN),
+      ascii(ClientDataCodec.JSON_PROPERTY_CHANNEL_ID)};
+
+  private final byte[] data;
+  // Value offsets of each field, -1 if the field is absent. For strings the quotes are excluded.
+  private final int[] starts = {-1, -1, -1, -1};
+  private final int[] ends = new int[FIELD_NAMES.length];
+  private final boolean[] isString = new boolean[FIELD_NAMES.length];
+  private final boolean[] isEscaped = new boolean[FIELD_NAMES.length];
+
+  private int pos;
+
+  private ClientDataScanner(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * Scans UTF-8 encoded ClientData. The array is referenced, not copied, by the returned scanner.
+   *
+   * @throws U2FException if the input is not a single well-formed JSON object, or if it
+   *     contains {@code typ}, {@code challenge} or {@code origin} more than once or as a
+   *     non-string value
+   */
+  public static ClientDataScanner scan(byte[] clientData) throws U2FException {
+    ClientDataScanner scanner = new ClientDataScanner(clientData);
+    scanner.scanClientData();
+    return scanner;
+  }
+
+  public boolean hasType() {
+    return starts[TYPE] >= 0;
+  }
+
+  public String getType() {
+    return getString(TYPE);
+  }
+
+  /** Whether {@code typ} is present and equal to {@code expected}. Does not allocate. */
+  public boolean typeEquals(String expected) {
+    return stringEquals(TYPE, expected);
+  }
+
+  public boolean hasChallenge() {
+    return starts[CHALLENGE] >= 0;
+  }
+
+  /** The websafe-base64 decoded challenge, or null if absent. */
+  public byte[] decodeChallenge() {
+    if (!hasChallenge()) {
+      return null;
+    }
+    if (isEscaped[CHALLENGE]) {
+      return Base64.decodeBase64(getString(CHALLENGE));
+    }
+    return Base64.decodeBase64(Arrays.copyOfRange(data, starts[CHALLENGE], ends[CHALLENGE]));
+  }
+
+  public boolean hasOrigin() {
+    return starts[ORIGIN] >= 0;
+  }
+
+  public String getOrigin() {
+    return getString(ORIGIN);
+  }
+
+  public boolean hasChannelId() {
+    return starts[CHANNEL_ID] >= 0;
+  }
+
+  /**
+   * The {@code cid_pubkey} value: the decoded string if it is a JSON string, otherwise its JSON
+   * text as it appears in the client data. Null if absent.
+   */
+  public String getChannelId() {
+    if (!hasChannelId() || isString[CHANNEL_ID]) {
+      return getString(CHANNEL_ID);
+    }
+    return new String(data, starts[CHANNEL_ID], ends[CHANNEL_ID] - starts[CHANNEL_ID],
+        Charsets.UTF_8);
+  }
+
+  private String getString(int field) {
+    if (starts[field] < 0) {
+      return null;
+    }
+    if (!isEscaped[field]) {
+      return new String(data, starts[field], ends[field] - starts[field], Charsets.UTF_8);
+    }
+    return unescape(starts[field], ends[field]);
+  }
+
+  private boolean stringEquals(int field, String expected) {
+    if (starts[field] < 0) {
+      return false;
+    }
+    if (isEscaped[field]) {
+      return expected.equals(getString(field));
+    }
+    int start = starts[field];
+    int length = ends[field] - start;
+    if (length != expected.length()) {
+      // a non-ASCII value may still match, with fewer chars than bytes
+      return (length > expected.length()) && expected.equals(getString(field));
+    }
+    for (int i = 0; i < length; i++) {
+      char c = expected.charAt(i);
+      if (c >= 0x80) {
+        return expected.equals(getString(field));
+      }
+      if (data[start + i] != c) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void scanClientData() throws U2FException {
+    skipWhitespace();
+    expect('{');
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+    } else {
+      while (true) {
+        scanMember();
+        skipWhitespace();
+        byte b = next();
+        if (b == '}') {
+          break;
+        }
+        if (b != ',') {
+          throw error("expected ',' or '}'");
+        }
+        skipWhitespace();
+      }
+    }
+    skipWhitespace();
+    if (pos != data.length) {
+      throw error("unexpected data after the clientData object");
+    }
+  }
+
+  private void scanMember() throws U2FException {
+    expect('"');
+    int keyStart = pos;
+    boolean keyEscaped = skipStringBody();
+    int field = keyEscaped
+        ? fieldIndex(unescape(keyStart, pos - 1))
+        : fieldIndex(keyStart, pos - 1);
+    skipWhitespace();
+    expect(':');
+    skipWhitespace();
+
+    if (field < 0) {
+      skipValue(0);
+      return;
+    }
+    if (starts[field] >= 0) {
+      throw error("duplicate '" + new String(FIELD_NAMES[field], Charsets.US_ASCII) + "' param");
+    }
+    if (peek() == '"') {
+      pos++;
+      int valueStart = pos;
+      isEscaped[field] = skipStringBody();
+      isString[field] = true;
+      starts[field] = valueStart;
+      ends[field] = pos - 1;
+    } else {
+      if (field != CHANNEL_ID) {
+        throw error("'" + new String(FIELD_NAMES[field], Charsets.US_ASCII)
+            + "' param is not a string");
+      }
+      int valueStart = pos;
+      skipValue(0);
+      starts[field] = valueStart;
+      ends[field] = pos;
+    }
+  }
+
+  private void skipValue(int depth) throws U2FException {
+    if (depth > MAX_NESTING_DEPTH) {
+      throw error("nested too deeply");
+    }
+    byte b = peek();
+    switch (b) {
+      case '"':
+        pos++;
+        skipStringBody();
+        return;
+      case '{':
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+          pos++;
+          return;
+        }
+        while (true) {
+          expect('"');
+          skipStringBody();
+          skipWhitespace();
+          expect(':');
+          skipWhitespace();
+          skipValue(depth + 1);
+          skipWhitespace();
+          b = next();
+          if (b == '}') {
+            return;
+          }
+          if (b != ',') {
+            throw error("expected ',' or '}'");
+          }
+          skipWhitespace();
+        }
+      case '[':
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+          pos++;
+          return;
+        }
+        while (true) {
+          skipValue(depth + 1);
+          skipWhitespace();
+          b = next();
+          if (b == ']') {
+            return;
+          }
+          if (b != ',') {
+            throw error("expected ',' or ']'");
+          }
+          skipWhitespace();
+        }
+      case 't':
+        skipLiteral("true");
+        return;
+      case 'f':
+        skipLiteral("false");
+        return;
+      case 'n':
+        skipLiteral("null");
+        return;
+      default:
+        if (b == '-' || (b >= '0' && b <= '9')) {
+          skipNumber();
+          return;
+        }
+        throw error("unexpected character");
+    }
+  }
+
+  /** Skips past the closing quote of a string. Returns whether the string has escapes. */
+  private boolean skipStringBody() throws U2FException {
+    boolean escaped = false;
+    while (true) {
+      if (pos >= data.length) {
+        throw error("unterminated string");
+      }
+      byte b = data[pos++];
+      if (b == '"') {
+        return escaped;
+      }
+      if (b == '\\') {
+        escaped = true;
+        switch (next()) {
+          case '"':
+          case '\\':
+          case '/':
+          case 'b':
+          case 'f':
+          case 'n':
+          case 'r':
+          case 't':
+            break;
+          case 'u':
+            for (int i = 0; i < 4; i++) {
+              if (hexValue(next()) < 0) {
+                throw error("bad \\u escape");
+              }
+            }
+            break;
+          default:
+            throw error("bad escape");
+        }
+      } else if ((b & 0xFF) < 0x20) {
+        throw error("control character in string");
+      }
+    }
+  }
+
+  private void skipNumber() throws U2FException {
+    if (peek() == '-') {
+      pos++;
+    }
+    if (peek() == '0') {
+      pos++;
+    } else {
+      skipDigits();
+    }
+    if (pos < data.length && data[pos] == '.') {
+      pos++;
+      skipDigits();
+    }
+    if (pos < data.length && (data[pos] == 'e' || data[pos] == 'E')) {
+      pos++;
+      if (peek() == '+' || peek() == '-') {
+        pos++;
+      }
+      skipDigits();
+    }
+  }
+
+  private void skipDigits() throws U2FException {
+    int start = pos;
+    while (pos < data.length && data[pos] >= '0' && data[pos] <= '9') {
+      pos++;
+    }
+    if (pos == start) {
+      throw error("expected a digit");
+    }
+  }
+
+  private void skipLiteral(String literal) throws U2FException {
+    for (int i = 0; i < literal.length(); i++) {
+      if (next() != literal.charAt(i)) {
+        throw error("unexpected character");
+      }
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < data.length) {
+      byte b = data[pos];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private void expect(char c) throws U2FException {
+    if (next() != c) {
+      throw error("expected '" + c + "'");
+    }
+  }
+
+  private byte peek() throws U2FException {
+    if (pos >= data.length) {
+      throw error("unexpected end of clientData");
+    }
+    return data[pos];
+  }
+
+  private byte next() throws U2FException {
+    byte b = peek();
+    pos++;
+    return b;
+  }
+
+  private U2FException error(String message) {
+    return new U2FException("malformed clientData at offset " + pos + ": " + message);
+  }
+
+  private int fieldIndex(int start, int end) {
+    for (int field = 0; field < FIELD_NAMES.length; field++) {
+      byte[] name = FIELD_NAMES[field];
+      if (name.length != end - start) {
+        continue;
+      }
+      int i = 0;
+      while (i < name.length && data[start + i] == name[i]) {
+        i++;
+      }
+      if (i == name.length) {
+        return field;
+      }
+    }
+    return -1;
+  }
+
+  private static int fieldIndex(String name) {
+    for (int field = 0; field < FIELD_NAMES.length; field++) {
+      if (name.equals(new String(FIELD_NAMES[field], Charsets.US_ASCII))) {
+        return field;
+      }
+    }
+    return -1;
+  }
+
+  /** Decodes an escaped string whose escapes have already been validated by the scan. */
+  private String unescape(int start, int end) {
+    StringBuilder result = new StringBuilder(end - start);
+    int runStart = start;
+    int i = start;
+    while (i < end) {
+      if (data[i] != '\\') {
+        i++;
+        continue;
+      }
+      result.append(new String(data, runStart, i - runStart, Charsets.UTF_8));
+      byte escape = data[i + 1];
+      i += 2;
+      switch (escape) {
+        case 'b':
+          result.append('\b');
+          break;
+        case 'f':
+          result.append('\f');
+          break;
+        case 'n':
+          result.append('\n');
+          break;
+        case 'r':
+          result.append('\r');
+          break;
+        case 't':
+          result.append('\t');
+          break;
+        case 'u':
+          result.append((char) ((hexValue(data[i]) << 12) | (hexValue(data[i + 1]) << 8)
+              | (hexValue(data[i + 2]) << 4) | hexValue(data[i + 3])));
+          i += 4;
+          break;
+        default:
+          // '"', '\\' and '/' stand for themselves
+          result.append((char) escape);
+      }
+      runStart = i;
+    }
+    result.append(new String(data, runStart, end - runStart, Charsets.UTF_8));
+    return result.toString();
+  }
+
+  private static int hexValue(byte b) {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    if (b >= 'A' && b <= 'F') {
+      return b - 'A' + 10;
+    }
+    return -1;
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(Charsets.US_ASCII);
+  }
+}
@@ -10,6 +10,8 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -88,6 +90,16 @@ public class RawMessageCodec {
   }
 
   public static RegisterResponse decodeRegisterResponse(byte[] data) throws U2FException {
+    return decodeRegisterResponse(data, null);
+  }
+
+  /**
+   * Decodes a registration response, passing the attestation certificate bytes to
+   * {@code certificateResolver} rather than parsing them, unless {@code certificateResolver} is
+   * null.
+   */
+  public static RegisterResponse decodeRegisterResponse(byte[] data,
+      CertificateResolver certificateResolver) throws U2FException {
     try {
       DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
       byte reservedByte = inputStream.readByte();
@@ -95,8 +107,17 @@ public class RawMessageCodec {
       inputStream.readFully(userPublicKey);
       byte[] keyHandle = new byte[inputStream.readUnsignedByte()];
       inputStream.readFully(keyHandle);
-      X509Certificate attestationCertificate = (X509Certificate) CertificateFactory.getInstance(
-          "X.509").generateCertificate(inputStream);
+      X509Certificate attestationCertificate;
+      if (certificateResolver == null) {
+        attestationCertificate = (X509Certificate) CertificateFactory.getInstance(
+            "X.509").generateCertificate(inputStream);
+      } else {
+        int certificateOffset = data.length - inputStream.available();
+        int certificateLength = getDerLength(data, certificateOffset);
+        attestationCertificate =
+            certificateResolver.resolve(data, certificateOffset, certificateLength);
+        inputStream.skipBytes(certificateLength);
+      }
       byte[] signature = new byte[inputStream.available()];
       inputStream.readFully(signature);
 
@@ -118,6 +139,32 @@ public class RawMessageCodec {
     }
   }
 
+  /**
+   * Returns the total length, header included, of the DER SEQUENCE starting at {@code offset}.
+   */
+  private static int getDerLength(byte[] data, int offset) throws CertificateException {
+    if (data.length - offset < 2 || data[offset] != 0x30) {
+      throw new CertificateException("Attestation certificate is not a DER SEQUENCE");
+    }
+    int length = data[offset + 1] & 0xFF;
+    int headerLength = 2;
+    if (length > 0x7F) {
+      int lengthBytes = length & 0x7F;
+      if (lengthBytes == 0 || lengthBytes > 3 || data.length - offset < 2 + lengthBytes) {
+        throw new CertificateException("Bad DER length in attestation certificate");
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | (data[offset + 2 + i] & 0xFF);
+      }
+      headerLength += lengthBytes;
+    }
+    if (length > data.length - offset - headerLength) {
+      throw new CertificateException("Attestation certificate is truncated");
+    }
+    return headerLength + length;
+  }
+
   public static byte[] encodeAuthenticateRequest(AuthenticateRequest authenticateRequest)
       throws U2FException {
     byte controlByte = authenticateRequest.getControl();
@@ -215,4 +262,33 @@ public class RawMessageCodec {
     .put(challengeSha256);
     return signedData;
   }
+
+  /**
+   * Feeds the same bytes as {@link #encodeRegistrationSignedBytes} into the given signature
+   * engine, without assembling them into an intermediate array.
+   */
+  public static void updateRegistrationSignedBytes(Signature signature, byte[] applicationSha256,
+      byte[] challengeSha256, byte[] keyHandle, byte[] userPublicKey) throws SignatureException {
+    signature.update(REGISTRATION_SIGNED_RESERVED_BYTE_VALUE); // RFU
+    signature.update(applicationSha256);
+    signature.update(challengeSha256);
+    signature.update(keyHandle);
+    signature.update(userPublicKey);
+  }
+
+  /**
+   * Feeds the same bytes as {@link #encodeAuthenticateSignedBytes} into the given signature
+   * engine, without assembling them into an intermediate array.
+   */
+  public static void updateAuthenticateSignedBytes(Signature signature, byte[] applicationSha256,
+      byte userPresence, int counter, byte[] challengeSha256) throws SignatureException {
+    signature.update(applicationSha256);
+    signature.update(userPresence);
+    // big-endian, as ByteBuffer.putInt() in encodeAuthenticateSignedBytes
+    signature.update((byte) (counter >>> 24));
+    signature.update((byte) (counter >>> 16));
+    signature.update((byte) (counter >>> 8));
+    signature.update((byte) counter);
+    signature.update(challengeSha256);
+  }
 }
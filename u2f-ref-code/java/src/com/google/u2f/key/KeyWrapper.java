@@ -0,0 +1,27 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+
+import com.google.u2f.U2FException;
+
+/**
+ * Keeps the private keys of registrations: either in storage, behind key handles that refer to
+ * them, or inside the key handles themselves.
+ */
+public interface KeyWrapper {
+  /** Returns the key handle of a new registration of {@code keyPair} for the application. */
+  byte[] wrap(byte[] applicationSha256, KeyPair keyPair);
+
+  /**
+   * Returns the private key of the registration with this key handle. Throws if the key handle
+   * was not issued by this wrapper for the application.
+   */
+  PrivateKey unwrap(byte[] applicationSha256, byte[] keyHandle) throws U2FException;
+}
@@ -0,0 +1,138 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.InvalidKeySpecException;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPrivateKeySpec;
+
+import com.google.u2f.U2FException;
+import com.google.u2f.key.KeyWrapper;
+
+/**
+ * Puts each registered private key, encrypted, into its key handle, so that the key stores
+ * nothing per registration.
+ *
+ * <p>A key handle is a random 12-byte nonce followed by the P-256 private key encrypted with
+ * AES-GCM under the wrapping key and that nonce. The application parameter is authenticated along
+ * with it, so a key handle only unwraps for the application it was registered with.
+ */
+public class AeadKeyWrapper implements KeyWrapper {
+  private static final int NONCE_LENGTH = 12;
+  private static final int PRIVATE_KEY_LENGTH = 32;
+  private static final int TAG_LENGTH = 16;
+  private static final int KEY_HANDLE_LENGTH = NONCE_LENGTH + PRIVATE_KEY_LENGTH + TAG_LENGTH;
+  private static final ECParameterSpec CURVE = ECNamedCurveTable.getParameterSpec("secp256r1");
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  private final KeyParameter wrappingKey;
+  private final SecureRandom random = new SecureRandom();
+  private final ThreadLocal<GCMBlockCipher> cipher = new ThreadLocal<GCMBlockCipher>();
+  private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>();
+
+  /**
+   * @param wrappingKey an AES key of 16, 24 or 32 bytes
+   */
+  public AeadKeyWrapper(byte[] wrappingKey) {
+    int length = wrappingKey.length;
+    if (length != 16 && length != 24 && length != 32) {
+      throw new IllegalArgumentException("not an AES key");
+    }
+    this.wrappingKey = new KeyParameter(wrappingKey.clone());
+  }
+
+  @Override
+  public byte[] wrap(byte[] applicationSha256, KeyPair keyPair) {
+    BigInteger s = ((ECPrivateKey) keyPair.getPrivate()).getS();
+    byte[] keyHandle = new byte[KEY_HANDLE_LENGTH];
+    // unsigned and left-padded to a fixed length
+    byte[] encoded = s.toByteArray();
+    int copied = Math.min(encoded.length, PRIVATE_KEY_LENGTH);
+    System.arraycopy(encoded, encoded.length - copied,
+        keyHandle, NONCE_LENGTH + PRIVATE_KEY_LENGTH - copied, copied);
+
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    System.arraycopy(nonce, 0, keyHandle, 0, NONCE_LENGTH);
+    GCMBlockCipher gcm = getCipher(true, nonce, applicationSha256);
+    int written = gcm.processBytes(keyHandle, NONCE_LENGTH, PRIVATE_KEY_LENGTH,
+        keyHandle, NONCE_LENGTH);
+    try {
+      gcm.doFinal(keyHandle, NONCE_LENGTH + written);
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException(e);
+    }
+    return keyHandle;
+  }
+
+  @Override
+  public PrivateKey unwrap(byte[] applicationSha256, byte[] keyHandle) throws U2FException {
+    if (keyHandle.length != KEY_HANDLE_LENGTH) {
+      throw new U2FException("Invalid key handle");
+    }
+    byte[] nonce = new byte[NONCE_LENGTH];
+    System.arraycopy(keyHandle, 0, nonce, 0, NONCE_LENGTH);
+    GCMBlockCipher gcm = getCipher(false, nonce, applicationSha256);
+    byte[] s = new byte[PRIVATE_KEY_LENGTH];
+    int written = gcm.processBytes(keyHandle, NONCE_LENGTH, KEY_HANDLE_LENGTH - NONCE_LENGTH,
+        s, 0);
+    try {
+      gcm.doFinal(s, written);
+    } catch (InvalidCipherTextException e) {
+      throw new U2FException("Invalid key handle", e);
+    }
+
+    try {
+      return getKeyFactory().generatePrivate(new ECPrivateKeySpec(new BigInteger(1, s), CURVE));
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when unwrapping key", e);
+    } catch (InvalidKeySpecException e) {
+      throw new U2FException("Error when unwrapping key", e);
+    }
+  }
+
+  private GCMBlockCipher getCipher(boolean forEncryption, byte[] nonce, byte[] associatedText) {
+    GCMBlockCipher gcm = cipher.get();
+    KeyParameter key = null;
+    if (gcm == null) {
+      gcm = new GCMBlockCipher(new AESFastEngine());
+      cipher.set(gcm);
+      key = wrappingKey;
+    }
+    // a null key reuses the key schedule and hash tables of the previous init
+    gcm.init(forEncryption, new AEADParameters(key, TAG_LENGTH * 8, nonce, associatedText));
+    return gcm;
+  }
+
+  private KeyFactory getKeyFactory() throws NoSuchAlgorithmException {
+    KeyFactory factory = keyFactory.get();
+    if (factory == null) {
+      factory = KeyFactory.getInstance("ECDSA");
+      keyFactory.set(factory);
+    }
+    return factory;
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+
+import com.google.u2f.U2FException;
+import com.google.u2f.key.DataStore;
+import com.google.u2f.key.KeyHandleGenerator;
+import com.google.u2f.key.KeyWrapper;
+
+/** Stores each registered key pair in a {@link DataStore}, under a generated key handle. */
+class StoringKeyWrapper implements KeyWrapper {
+  private final KeyHandleGenerator keyHandleGenerator;
+  private final DataStore dataStore;
+
+  StoringKeyWrapper(KeyHandleGenerator keyHandleGenerator, DataStore dataStore) {
+    this.keyHandleGenerator = keyHandleGenerator;
+    this.dataStore = dataStore;
+  }
+
+  @Override
+  public byte[] wrap(byte[] applicationSha256, KeyPair keyPair) {
+    byte[] keyHandle = keyHandleGenerator.generateKeyHandle(applicationSha256, keyPair);
+    dataStore.storeKeyPair(keyHandle, keyPair);
+    return keyHandle;
+  }
+
+  @Override
+  public PrivateKey unwrap(byte[] applicationSha256, byte[] keyHandle) throws U2FException {
+    KeyPair keyPair = dataStore.getKeyPair(keyHandle);
+    if (keyPair == null) {
+      throw new U2FException("Unknown key handle");
+    }
+    return keyPair.getPrivate();
+  }
+}
@@ -9,9 +9,7 @@ package com.google.u2f.key.impl;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.util.logging.Logger;
-
-import org.apache.commons.codec.binary.Hex;
+import java.util.logging.Level;
 
 import com.google.u2f.U2FException;
 import com.google.u2f.codec.RawMessageCodec;
@@ -19,20 +17,22 @@ import com.google.u2f.key.Crypto;
 import com.google.u2f.key.DataStore;
 import com.google.u2f.key.KeyHandleGenerator;
 import com.google.u2f.key.KeyPairGenerator;
+import com.google.u2f.key.KeyWrapper;
 import com.google.u2f.key.U2FKey;
 import com.google.u2f.key.UserPresenceVerifier;
 import com.google.u2f.key.messages.AuthenticateRequest;
 import com.google.u2f.key.messages.AuthenticateResponse;
 import com.google.u2f.key.messages.RegisterRequest;
 import com.google.u2f.key.messages.RegisterResponse;
+import com.google.u2f.trace.Tracer;
 
 public class U2FKeyReferenceImpl implements U2FKey {
-  private static final Logger Log = Logger.getLogger(U2FKeyReferenceImpl.class.getName());
+  private static final Tracer Trace = Tracer.getTracer(U2FKeyReferenceImpl.class);
 
   private final X509Certificate vendorCertificate;
   private final PrivateKey certificatePrivateKey;
   private final KeyPairGenerator keyPairGenerator;
-  private final KeyHandleGenerator keyHandleGenerator;
+  private final KeyWrapper keyWrapper;
   private final DataStore dataStore;
   private final UserPresenceVerifier userPresenceVerifier;
   private final Crypto crypto;
@@ -40,10 +40,22 @@ public class U2FKeyReferenceImpl implements U2FKey {
   public U2FKeyReferenceImpl(X509Certificate vendorCertificate, PrivateKey certificatePrivateKey,
       KeyPairGenerator keyPairGenerator, KeyHandleGenerator keyHandleGenerator,
       DataStore dataStore, UserPresenceVerifier userPresenceVerifier, Crypto crypto) {
+    this(vendorCertificate, certificatePrivateKey, keyPairGenerator,
+        new StoringKeyWrapper(keyHandleGenerator, dataStore), dataStore, userPresenceVerifier,
+        crypto);
+  }
+
+  /**
+   * @param keyWrapper keeps the private keys of registrations; with an {@link AeadKeyWrapper},
+   *     {@code dataStore} only keeps the counter
+   */
+  public U2FKeyReferenceImpl(X509Certificate vendorCertificate, PrivateKey certificatePrivateKey,
+      KeyPairGenerator keyPairGenerator, KeyWrapper keyWrapper, DataStore dataStore,
+      UserPresenceVerifier userPresenceVerifier, Crypto crypto) {
     this.vendorCertificate = vendorCertificate;
     this.certificatePrivateKey = certificatePrivateKey;
     this.keyPairGenerator = keyPairGenerator;
-    this.keyHandleGenerator = keyHandleGenerator;
+    this.keyWrapper = keyWrapper;
     this.dataStore = dataStore;
     this.userPresenceVerifier = userPresenceVerifier;
     this.crypto = crypto;
@@ -51,14 +63,13 @@ public class U2FKeyReferenceImpl implements U2FKey {
 
   @Override
   public RegisterResponse register(RegisterRequest registerRequest) throws U2FException {
-    Log.info(">> register");
+    Trace.event(Level.FINE, null, ">> register");
 
     byte[] applicationSha256 = registerRequest.getApplicationSha256();
     byte[] challengeSha256 = registerRequest.getChallengeSha256();
 
-    Log.info(" -- Inputs --");
-    Log.info("  applicationSha256: " + Hex.encodeHexString(applicationSha256));
-    Log.info("  challengeSha256: " + Hex.encodeHexString(challengeSha256));
+    Trace.field(Level.FINER, null, "applicationSha256", applicationSha256);
+    Trace.field(Level.FINER, null, "challengeSha256", challengeSha256);
 
     byte userPresent = userPresenceVerifier.verifyUserPresence();
     if ((userPresent & UserPresenceVerifier.USER_PRESENT_FLAG) == 0) {
@@ -66,25 +77,22 @@ public class U2FKeyReferenceImpl implements U2FKey {
     }
 
     KeyPair keyPair = keyPairGenerator.generateKeyPair(applicationSha256, challengeSha256);
-    byte[] keyHandle = keyHandleGenerator.generateKeyHandle(applicationSha256, keyPair);
-
-    dataStore.storeKeyPair(keyHandle, keyPair);
+    byte[] keyHandle = keyWrapper.wrap(applicationSha256, keyPair);
 
     byte[] userPublicKey = keyPairGenerator.encodePublicKey(keyPair.getPublic());
 
     byte[] signedData = RawMessageCodec.encodeRegistrationSignedBytes(applicationSha256, challengeSha256,
         keyHandle, userPublicKey);
-    Log.info("Signing bytes " + Hex.encodeHexString(signedData));
+    Trace.field(Level.FINEST, null, "signing bytes", signedData);
 
     byte[] signature = crypto.sign(signedData, certificatePrivateKey);
 
-    Log.info(" -- Outputs --");
-    Log.info("  userPublicKey: " + Hex.encodeHexString(userPublicKey));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
-    Log.info("  vendorCertificate: " + vendorCertificate);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
+    Trace.field(Level.FINER, null, "userPublicKey", userPublicKey);
+    Trace.field(Level.FINER, null, "keyHandle", keyHandle);
+    Trace.field(Level.FINEST, null, "vendorCertificate", vendorCertificate);
+    Trace.field(Level.FINER, null, "signature", signature);
 
-    Log.info("<< register");
+    Trace.event(Level.FINE, null, "<< register");
 
     return new RegisterResponse(userPublicKey, keyHandle, vendorCertificate, signature);
   }
@@ -92,35 +100,33 @@ public class U2FKeyReferenceImpl implements U2FKey {
   @Override
   public AuthenticateResponse authenticate(AuthenticateRequest authenticateRequest)
       throws U2FException {
-    Log.info(">> authenticate");
+    Trace.event(Level.FINE, null, ">> authenticate");
 
     byte control = authenticateRequest.getControl();
     byte[] applicationSha256 = authenticateRequest.getApplicationSha256();
     byte[] challengeSha256 = authenticateRequest.getChallengeSha256();
     byte[] keyHandle = authenticateRequest.getKeyHandle();
 
-    Log.info(" -- Inputs --");
-    Log.info("  control: " + control);
-    Log.info("  applicationSha256: " + Hex.encodeHexString(applicationSha256));
-    Log.info("  challengeSha256: " + Hex.encodeHexString(challengeSha256));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
+    Trace.field(Level.FINER, null, "control", control);
+    Trace.field(Level.FINER, null, "applicationSha256", applicationSha256);
+    Trace.field(Level.FINER, null, "challengeSha256", challengeSha256);
+    Trace.field(Level.FINER, null, "keyHandle", keyHandle);
 
-    KeyPair keyPair = dataStore.getKeyPair(keyHandle);
+    PrivateKey privateKey = keyWrapper.unwrap(applicationSha256, keyHandle);
     int counter = dataStore.incrementCounter();
     byte userPresence = userPresenceVerifier.verifyUserPresence();
     byte[] signedData = RawMessageCodec.encodeAuthenticateSignedBytes(applicationSha256, userPresence,
         counter, challengeSha256);
 
-    Log.info("Signing bytes " + Hex.encodeHexString(signedData));
+    Trace.field(Level.FINEST, null, "signing bytes", signedData);
 
-    byte[] signature = crypto.sign(signedData, keyPair.getPrivate());
+    byte[] signature = crypto.sign(signedData, privateKey);
 
-    Log.info(" -- Outputs --");
-    Log.info("  userPresence: " + userPresence);
-    Log.info("  counter: " + counter);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
+    Trace.field(Level.FINER, null, "userPresence", userPresence);
+    Trace.field(Level.FINER, null, "counter", counter);
+    Trace.field(Level.FINER, null, "signature", signature);
 
-    Log.info("<< authenticate");
+    Trace.event(Level.FINE, null, "<< authenticate");
 
     return new AuthenticateResponse(userPresence, counter, signature);
   }
@@ -0,0 +1,37 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.u2f.server.data.CounterUpdate;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * A {@link DataStore} that can serve many lookups or updates in a single call. Remote stores
+ * should implement this to turn a batch of sign responses into one round-trip per phase.
+ */
+public interface BatchDataStore extends DataStore {
+
+  /**
+   * Consumes sessions as {@link #consumeSignSessionData(String)} does, and returns them by
+   * session id. Unknown, consumed and expired session ids are absent from the result.
+   */
+  public Map<String, SignSessionData> consumeSignSessionData(Collection<String> sessionIds);
+
+  /** Security keys by account name. Accounts without keys map to an empty list. */
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames);
+
+  /**
+   * Applies each update in order, as {@link #advanceCounterIfGreater} does, and returns for each
+   * one whether the counter was advanced.
+   */
+  public boolean[] advanceCountersIfGreater(List<CounterUpdate> counterUpdates);
+}
@@ -18,6 +18,23 @@ public interface Crypto {
   boolean verifySignature(PublicKey publicKey, byte[] signedBytes,
       byte[] signature) throws U2FException;
 
+  /**
+   * Verifies the attestation signature of a registration response. The signed bytes (see
+   * {@link com.google.u2f.codec.RawMessageCodec#encodeRegistrationSignedBytes}) are fed into the
+   * signature engine one component at a time; the raw client data is hashed on the way.
+   */
+  boolean verifyRegistrationSignature(X509Certificate attestationCertificate,
+      byte[] applicationSha256, byte[] clientData, byte[] keyHandle, byte[] userPublicKey,
+      byte[] signature) throws U2FException;
+
+  /**
+   * Verifies the signature of an authentication response. The signed bytes (see
+   * {@link com.google.u2f.codec.RawMessageCodec#encodeAuthenticateSignedBytes}) are fed into the
+   * signature engine one component at a time; the raw client data is hashed on the way.
+   */
+  boolean verifyAuthenticateSignature(PublicKey publicKey, byte[] applicationSha256,
+      byte userPresence, int counter, byte[] clientData, byte[] signature) throws U2FException;
+
   PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException;
 
   byte[] computeSha256(byte[] bytes) throws U2FException;
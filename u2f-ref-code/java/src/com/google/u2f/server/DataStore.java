@@ -29,13 +29,40 @@ public interface DataStore {
 
   public EnrollSessionData getEnrollSessionData(String sessionId);
 
+  /**
+   * Returns the session and removes it, so that it answers at most one response. Returns null if
+   * the session is unknown, was already consumed, or has expired.
+   */
+  public SignSessionData consumeSignSessionData(String sessionId);
+
+  /** As {@link #consumeSignSessionData}, for registration sessions. */
+  public EnrollSessionData consumeEnrollSessionData(String sessionId);
+
 
   // security key management
   public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData);
 
   public List<SecurityKeyData> getSecurityKeyData(String accountName);
 
+  /** Returns the account's key with the given key handle, or null if there is none. */
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(String accountName, byte[] keyHandle);
+
   public void removeSecuityKey(String accountName, byte[] publicKey);
 
+  /**
+   * Sets the counter of the account's key with the given public key.
+   *
+   * @deprecated a plain set lets a replayed response move the counter back; use
+   *     {@link #advanceCounterIfGreater} instead.
+   */
+  @Deprecated
   public void updateSecurityKeyCounter(String accountName, byte[] publicKey, int newCounterValue);
+
+  /**
+   * Atomically sets the counter of the account's key with the given key handle to
+   * {@code newCounterValue}, if that is greater than its current value. Returns false, leaving
+   * the counter as it is, if it is not greater or if there is no such key.
+   */
+  public boolean advanceCounterIfGreater(String accountName, byte[] keyHandle,
+      int newCounterValue);
 }
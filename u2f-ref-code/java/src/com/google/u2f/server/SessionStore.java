@@ -0,0 +1,27 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server;
+
+import com.google.u2f.server.data.EnrollSessionData;
+
+/**
+ * Keeps pending registration and sign sessions for a {@link DataStore}. Sessions expire a fixed
+ * time after they were stored.
+ */
+public interface SessionStore {
+
+  public /* sessionId */ String storeSessionData(EnrollSessionData sessionData);
+
+  /** Returns the session, or null if it is unknown, consumed or expired. */
+  public EnrollSessionData getSessionData(String sessionId);
+
+  /** As {@link #getSessionData}, but also removes the session. */
+  public EnrollSessionData consumeSessionData(String sessionId);
+
+  /** The number of sessions held, including expired ones that were not reclaimed yet. */
+  public int size();
+}
@@ -10,6 +10,7 @@ import java.util.List;
 
 import com.google.u2f.U2FException;
 import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignResult;
 import com.google.u2f.server.messages.RegistrationRequest;
 import com.google.u2f.server.messages.RegistrationResponse;
 import com.google.u2f.server.messages.SignResponse;
@@ -28,6 +29,12 @@ public interface U2FServer {
 
   public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException;
 
+  /**
+   * Processes several sign responses at once. Returns one result per response, in the same
+   * order; a rejected response does not affect the others.
+   */
+  public List<SignResult> processSignResponses(List<SignResponse> signResponses);
+
   // token management //
   public List<SecurityKeyData> getAllSecurityKeys(String accountName);
 
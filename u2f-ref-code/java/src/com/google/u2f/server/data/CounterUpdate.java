@@ -0,0 +1,32 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.data;
+
+/** A new counter value for one of an account's security keys. */
+public class CounterUpdate {
+  private final String accountName;
+  private final byte[] keyHandle;
+  private final int newCounterValue;
+
+  public CounterUpdate(String accountName, byte[] keyHandle, int newCounterValue) {
+    this.accountName = accountName;
+    this.keyHandle = keyHandle;
+    this.newCounterValue = newCounterValue;
+  }
+
+  public String getAccountName() {
+    return accountName;
+  }
+
+  public byte[] getKeyHandle() {
+    return keyHandle;
+  }
+
+  public int getNewCounterValue() {
+    return newCounterValue;
+  }
+}
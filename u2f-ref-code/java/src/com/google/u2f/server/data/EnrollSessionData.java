@@ -14,11 +14,19 @@ public class EnrollSessionData implements Serializable {
   private final String accountName;
   private final byte[] challenge;
   private final String appId;
+  // zero for sessions serialized before sessions carried a creation time
+  private final long creationTime;
 
   public EnrollSessionData(String accountName, String appId, byte[] challenge) {
+    this(accountName, appId, challenge, System.currentTimeMillis());
+  }
+
+  public EnrollSessionData(String accountName, String appId, byte[] challenge,
+      long creationTime) {
     this.accountName = accountName;
     this.challenge = challenge;
     this.appId = appId;
+    this.creationTime = creationTime;
   }
 
   public String getAccountName() {
@@ -32,4 +40,9 @@ public class EnrollSessionData implements Serializable {
   public String getAppId() {
 	return appId;
   }
+
+  /** When the session was created, in milliseconds since the epoch. */
+  public long getCreationTime() {
+    return creationTime;
+  }
 }
@@ -9,12 +9,16 @@ package com.google.u2f.server.data;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.commons.codec.binary.Base64;
 
 import com.google.common.base.Objects;
 
 public class SecurityKeyData {
+  private static final AtomicIntegerFieldUpdater<SecurityKeyData> COUNTER_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(SecurityKeyData.class, "counter");
+
   public enum Transports {
     BLUETOOTH_RADIO,
     BLUETOOTH_LOW_ENERGY,
@@ -27,7 +31,7 @@ public class SecurityKeyData {
   private final byte[] keyHandle;
   private final byte[] publicKey;
   private final X509Certificate attestationCert;
-  private int counter;
+  private volatile int counter;
 
   public SecurityKeyData(
       long enrollmentTime,
@@ -84,6 +88,22 @@ public class SecurityKeyData {
     counter = newCounterValue;
   }
 
+  /**
+   * Atomically sets the counter to {@code newCounterValue} if that is greater than the current
+   * value. Returns whether the counter was changed.
+   */
+  public boolean advanceCounterIfGreater(int newCounterValue) {
+    while (true) {
+      int currentValue = counter;
+      if (newCounterValue <= currentValue) {
+        return false;
+      }
+      if (COUNTER_UPDATER.compareAndSet(this, currentValue, newCounterValue)) {
+        return true;
+      }
+    }
+  }
+
   @Override
   public int hashCode() {
     return Objects.hashCode(
@@ -0,0 +1,53 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.data;
+
+import com.google.u2f.U2FException;
+
+/**
+ * Outcome of processing one sign response of a batch: either the security key that signed it,
+ * or the reason it was rejected.
+ */
+public class SignResult {
+  private final SecurityKeyData securityKeyData;
+  private final U2FException exception;
+
+  private SignResult(SecurityKeyData securityKeyData, U2FException exception) {
+    this.securityKeyData = securityKeyData;
+    this.exception = exception;
+  }
+
+  public static SignResult success(SecurityKeyData securityKeyData) {
+    return new SignResult(securityKeyData, null);
+  }
+
+  public static SignResult failure(U2FException exception) {
+    return new SignResult(null, exception);
+  }
+
+  public boolean isSuccess() {
+    return exception == null;
+  }
+
+  /** The security key that produced the signature, or null if the response was rejected. */
+  public SecurityKeyData getSecurityKeyData() {
+    return securityKeyData;
+  }
+
+  /** Why the response was rejected, or null if it was accepted. */
+  public U2FException getException() {
+    return exception;
+  }
+
+  /** Returns the security key data, or throws the exception this response was rejected with. */
+  public SecurityKeyData get() throws U2FException {
+    if (exception != null) {
+      throw exception;
+    }
+    return securityKeyData;
+  }
+}
@@ -6,17 +6,66 @@
 
 package com.google.u2f.server.data;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sign challenge, and the keys that may answer it. A session either covers the key handles of
+ * all keys an account had when the challenge was issued, or, as sessions did before, a single
+ * key identified by its public key.
+ */
 public class SignSessionData extends EnrollSessionData {
   private static final long serialVersionUID = -1374014642398686120L;
 
+  // null if the session covers a set of key handles
   private final byte[] publicKey;
+  // null if the session covers the single key above
+  private final byte[][] keyHandles;
 
   public SignSessionData(String accountName, String appId, byte[] challenge, byte[] publicKey) {
-    super(accountName, appId, challenge);
+    this(accountName, appId, challenge, publicKey, System.currentTimeMillis());
+  }
+
+  public SignSessionData(String accountName, String appId, byte[] challenge, byte[] publicKey,
+      long creationTime) {
+    super(accountName, appId, challenge, creationTime);
     this.publicKey = publicKey;
+    this.keyHandles = null;
   }
 
+  public SignSessionData(String accountName, String appId, byte[] challenge,
+      List<byte[]> keyHandles) {
+    this(accountName, appId, challenge, keyHandles, System.currentTimeMillis());
+  }
+
+  public SignSessionData(String accountName, String appId, byte[] challenge,
+      List<byte[]> keyHandles, long creationTime) {
+    super(accountName, appId, challenge, creationTime);
+    this.publicKey = null;
+    this.keyHandles = keyHandles.toArray(new byte[keyHandles.size()][]);
+  }
+
+  /** The public key of the single key this session covers, or null. */
   public byte[] getPublicKey() {
     return publicKey;
   }
+
+  /** The key handles this session covers, or null for a single-key session. */
+  public List<byte[]> getKeyHandles() {
+    return (keyHandles == null) ? null : Collections.unmodifiableList(Arrays.asList(keyHandles));
+  }
+
+  /** Whether a response signed by the key with this handle answers this session. */
+  public boolean containsKeyHandle(byte[] keyHandle) {
+    if (keyHandles == null) {
+      return false;
+    }
+    for (byte[] candidate : keyHandles) {
+      if (Arrays.equals(candidate, keyHandle)) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
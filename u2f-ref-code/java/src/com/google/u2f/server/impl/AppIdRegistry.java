@@ -0,0 +1,97 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.Crypto;
+
+/**
+ * The appIds a server serves, each mapped to a canonical String instance and its SHA-256.
+ * Known appIds are hashed once when the registry is built. Depending on how it is built, the
+ * registry either rejects unknown appIds or hashes them lazily into a bounded cache.
+ */
+public class AppIdRegistry {
+  public static final long DEFAULT_MAXIMUM_UNKNOWN_APP_IDS = 100;
+
+  public static class AppId {
+    private final String appId;
+    private final byte[] sha256;
+
+    private AppId(String appId, byte[] sha256) {
+      this.appId = appId;
+      this.sha256 = sha256;
+    }
+
+    /** The canonical instance of this appId, shared by all sessions that use it. */
+    public String getAppId() {
+      return appId;
+    }
+
+    /** SHA-256 of the UTF-8 encoded appId. The returned array is shared and must not be modified. */
+    public byte[] getSha256() {
+      return sha256;
+    }
+  }
+
+  private final Crypto crypto;
+  private final ImmutableMap<String, AppId> knownAppIds;
+  // null if unknown appIds are rejected
+  private final Cache<String, AppId> unknownAppIds;
+
+  /** Builds a registry that rejects any appId not in {@code appIds}. */
+  public AppIdRegistry(Crypto crypto, Set<String> appIds) {
+    this(crypto, appIds, 0);
+  }
+
+  /**
+   * Builds a registry that hashes appIds not in {@code appIds} on first use, keeping at most
+   * {@code maximumUnknownAppIds} of them. If {@code maximumUnknownAppIds} is 0, unknown appIds
+   * are rejected.
+   */
+  public AppIdRegistry(Crypto crypto, Set<String> appIds, long maximumUnknownAppIds) {
+    this.crypto = crypto;
+    ImmutableMap.Builder<String, AppId> builder = ImmutableMap.builder();
+    for (String appId : appIds) {
+      try {
+        builder.put(appId, hash(appId));
+      } catch (U2FException e) {
+        throw new RuntimeException("cannot hash appId " + appId, e);
+      }
+    }
+    this.knownAppIds = builder.build();
+    this.unknownAppIds = (maximumUnknownAppIds > 0)
+        ? CacheBuilder.newBuilder().maximumSize(maximumUnknownAppIds).<String, AppId>build()
+        : null;
+  }
+
+  public AppId lookup(String appId) throws U2FException {
+    AppId result = knownAppIds.get(appId);
+    if (result != null) {
+      return result;
+    }
+    if (unknownAppIds == null) {
+      throw new U2FException(appId + " is not a known appId for this backend");
+    }
+    result = unknownAppIds.getIfPresent(appId);
+    if (result == null) {
+      // racing threads may both hash the same appId; either result is fine to keep
+      result = hash(appId);
+      unknownAppIds.put(result.getAppId(), result);
+    }
+    return result;
+  }
+
+  private AppId hash(String appId) throws U2FException {
+    return new AppId(appId, crypto.computeSha256(appId.getBytes(Charsets.UTF_8)));
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.AsyncU2FServer;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.messages.RegistrationRequest;
+import com.google.u2f.server.messages.RegistrationResponse;
+import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.U2fSignRequest;
+
+/**
+ * {@link AsyncU2FServer} on top of {@link U2FServerReferenceImpl}. Data store calls run on an
+ * I/O executor, and message parsing and signature checks run on a separate, CPU-bound crypto
+ * executor, so that slow store round-trips never hold up verification threads.
+ */
+public class AsyncU2FServerReferenceImpl implements AsyncU2FServer {
+
+  private final U2FServerReferenceImpl server;
+  private final ListeningExecutorService cryptoExecutor;
+  private final ListeningExecutorService ioExecutor;
+
+  /**
+   * Creates fixed-size pools of daemon threads: typically one crypto thread per core, and as
+   * many I/O threads as there may be concurrent data store calls in flight.
+   */
+  public AsyncU2FServerReferenceImpl(U2FServerReferenceImpl server, int cryptoThreads,
+      int ioThreads) {
+    this(server,
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(cryptoThreads,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("u2f-crypto-%d").build())),
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(ioThreads,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("u2f-io-%d").build())));
+  }
+
+  public AsyncU2FServerReferenceImpl(U2FServerReferenceImpl server,
+      ListeningExecutorService cryptoExecutor, ListeningExecutorService ioExecutor) {
+    this.server = server;
+    this.cryptoExecutor = cryptoExecutor;
+    this.ioExecutor = ioExecutor;
+  }
+
+  @Override
+  public ListenableFuture<RegistrationRequest> getRegistrationRequest(final String accountName,
+      final String appId) {
+    return ioExecutor.submit(new Callable<RegistrationRequest>() {
+      @Override
+      public RegistrationRequest call() throws U2FException {
+        return server.getRegistrationRequest(accountName, appId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SecurityKeyData> processRegistrationResponse(
+      final RegistrationResponse registrationResponse, final long currentTimeInMillis) {
+    ListenableFuture<EnrollSessionData> sessionData =
+        ioExecutor.submit(new Callable<EnrollSessionData>() {
+          @Override
+          public EnrollSessionData call() throws U2FException {
+            return server.loadEnrollSessionData(registrationResponse.getSessionId());
+          }
+        });
+
+    return Futures.transform(sessionData,
+        new AsyncFunction<EnrollSessionData, SecurityKeyData>() {
+          @Override
+          public ListenableFuture<SecurityKeyData> apply(final EnrollSessionData sessionData)
+              throws U2FException {
+            final SecurityKeyData securityKeyData = server.verifyRegistrationResponse(
+                registrationResponse, sessionData, currentTimeInMillis);
+
+            return ioExecutor.submit(new Callable<SecurityKeyData>() {
+              @Override
+              public SecurityKeyData call() {
+                server.commitRegistration(sessionData, securityKeyData);
+                return securityKeyData;
+              }
+            });
+          }
+        }, cryptoExecutor);
+  }
+
+  @Override
+  public ListenableFuture<U2fSignRequest> getSignRequest(final String accountName,
+      final String appId) {
+    return ioExecutor.submit(new Callable<U2fSignRequest>() {
+      @Override
+      public U2fSignRequest call() throws U2FException {
+        return server.getSignRequest(accountName, appId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SecurityKeyData> processSignResponse(final SignResponse signResponse) {
+    ListenableFuture<SignContext> loaded = ioExecutor.submit(new Callable<SignContext>() {
+      @Override
+      public SignContext call() throws U2FException {
+        SignSessionData sessionData = server.loadSignSessionData(signResponse.getSessionId());
+        return new SignContext(sessionData, server.loadSecurityKeyData(signResponse, sessionData));
+      }
+    });
+
+    return Futures.transform(loaded, new AsyncFunction<SignContext, SecurityKeyData>() {
+      @Override
+      public ListenableFuture<SecurityKeyData> apply(final SignContext context)
+          throws U2FException {
+        final int counter = server.verifySignResponse(signResponse, context.sessionData,
+            context.securityKeyData);
+
+        return ioExecutor.submit(new Callable<SecurityKeyData>() {
+          @Override
+          public SecurityKeyData call() throws U2FException {
+            server.commitSignResponse(context.sessionData, context.securityKeyData, counter);
+            return context.securityKeyData;
+          }
+        });
+      }
+    }, cryptoExecutor);
+  }
+
+  @Override
+  public ListenableFuture<List<SecurityKeyData>> getAllSecurityKeys(final String accountName) {
+    return ioExecutor.submit(new Callable<List<SecurityKeyData>>() {
+      @Override
+      public List<SecurityKeyData> call() {
+        return server.getAllSecurityKeys(accountName);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> removeSecurityKey(final String accountName,
+      final byte[] publicKey) {
+    return ioExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws U2FException {
+        server.removeSecurityKey(accountName, publicKey);
+        return null;
+      }
+    });
+  }
+
+  /** Stops accepting new requests on both executors. */
+  public void shutdown() {
+    cryptoExecutor.shutdown();
+    ioExecutor.shutdown();
+  }
+
+  private static class SignContext {
+    private final SignSessionData sessionData;
+    private final SecurityKeyData securityKeyData;
+
+    private SignContext(SignSessionData sessionData, SecurityKeyData securityKeyData) {
+      this.sessionData = sessionData;
+      this.securityKeyData = securityKeyData;
+    }
+  }
+}
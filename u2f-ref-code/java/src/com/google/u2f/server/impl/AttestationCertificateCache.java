@@ -0,0 +1,135 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.u2f.codec.CertificateResolver;
+import com.google.u2f.server.data.SecurityKeyData.Transports;
+
+/**
+ * Interns attestation certificates by their DER encoding. All keys of an authenticator model
+ * usually share the same attestation certificate, so registrations from that model get one
+ * shared {@link X509Certificate}, parsed once, along with its parsed transports extension.
+ */
+public class AttestationCertificateCache implements CertificateResolver {
+  public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+  private static class Entry {
+    final X509Certificate certificate;
+    final List<Transports> transports;
+    // set instead of transports if the extension could not be parsed; an exception is not kept,
+    // since one instance thrown from several threads would share its stack trace
+    final String transportsError;
+
+    Entry(X509Certificate certificate) {
+      List<Transports> parsedTransports = null;
+      String parseError = null;
+      try {
+        parsedTransports = U2FServerReferenceImpl.parseTransportsExtension(certificate);
+      } catch (CertificateParsingException e) {
+        parseError = String.valueOf(e.getMessage());
+      }
+      this.certificate = certificate;
+      this.transports = (parsedTransports == null)
+          ? null : Collections.unmodifiableList(parsedTransports);
+      this.transportsError = parseError;
+    }
+  }
+
+  private final Cache<ByteBuffer, Entry> byEncoding;
+  // finds the entry of a certificate handed out by this cache; weak keys compare by identity.
+  // Entries hold their key, so they are never collected, and are removed along with the entry
+  // by encoding instead.
+  private final Cache<X509Certificate, Entry> byCertificate;
+
+  public AttestationCertificateCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  public AttestationCertificateCache(long maximumSize) {
+    this.byCertificate = CacheBuilder.newBuilder()
+        .weakKeys()
+        .maximumSize(maximumSize)
+        .build();
+    this.byEncoding = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .removalListener(new RemovalListener<ByteBuffer, Entry>() {
+          @Override
+          public void onRemoval(RemovalNotification<ByteBuffer, Entry> notification) {
+            byCertificate.invalidate(notification.getValue().certificate);
+          }
+        })
+        .build();
+  }
+
+  @Override
+  public X509Certificate resolve(byte[] data, int offset, int length)
+      throws CertificateException {
+    // ByteBuffer equality only looks at the wrapped range, so a hit copies nothing
+    Entry entry = byEncoding.getIfPresent(ByteBuffer.wrap(data, offset, length));
+    if (entry == null) {
+      byte[] encoding = Arrays.copyOfRange(data, offset, offset + length);
+      X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+          .generateCertificate(new ByteArrayInputStream(encoding));
+      entry = new Entry(certificate);
+      byEncoding.put(ByteBuffer.wrap(encoding), entry);
+      byCertificate.put(certificate, entry);
+    }
+    return entry.certificate;
+  }
+
+  /**
+   * Returns the transports extension of {@code certificate}, as
+   * {@link U2FServerReferenceImpl#parseTransportsExtension} does. The extension is only parsed
+   * if the certificate was not resolved through this cache. The returned list is unmodifiable.
+   */
+  public List<Transports> getTransports(X509Certificate certificate)
+      throws CertificateParsingException {
+    Entry entry = byCertificate.getIfPresent(certificate);
+    if (entry == null) {
+      return U2FServerReferenceImpl.parseTransportsExtension(certificate);
+    }
+    if (entry.transportsError != null) {
+      throw new CertificateParsingException(entry.transportsError);
+    }
+    return entry.transports;
+  }
+
+  public void invalidateAll() {
+    byEncoding.invalidateAll();
+    byCertificate.invalidateAll();
+  }
+
+  public long size() {
+    return byEncoding.size();
+  }
+
+  /** The number of certificates whose transports are remembered. */
+  long transportsSize() {
+    return byCertificate.size();
+  }
+
+  /** Hit, miss and eviction counts of lookups by encoding since this cache was created. */
+  public CacheStats stats() {
+    return byEncoding.stats();
+  }
+}
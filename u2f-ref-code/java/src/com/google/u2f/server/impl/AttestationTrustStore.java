@@ -0,0 +1,288 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.Crypto;
+import com.google.u2f.server.DataStore;
+
+/**
+ * Decides whether attestation certificates are trusted.
+ *
+ * <p>An attestation certificate is trusted if it is itself a trust anchor, or if it is signed by
+ * a trust anchor that is a CA. Anchors are indexed by SHA-256 fingerprint, by subject key
+ * identifier and by subject, so that finding the candidate issuers of a certificate does not
+ * scan all anchors. Validity periods are not checked, since attestation certificates are
+ * routinely used past their expiry.
+ *
+ * <p>Results are remembered per certificate fingerprint for a bounded time. Adding an anchor
+ * forgets all of them. Anchors kept in a {@link DataStore} are read again whenever a certificate
+ * has no remembered result, so an anchor added to the data store applies to new certificates at
+ * once, and to all certificates once the results remembered before it have expired.
+ */
+public class AttestationTrustStore {
+  private static final Logger Log = Logger.getLogger(AttestationTrustStore.class.getName());
+
+  public enum Policy {
+    /** Untrusted attestation certificates are logged and accepted. */
+    LOG,
+    /** Registrations with untrusted attestation certificates are rejected. */
+    ENFORCE
+  }
+
+  public static final long DEFAULT_MAXIMUM_RESULTS = 10000;
+  public static final long DEFAULT_RESULT_TTL_MINUTES = 10;
+
+  private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+  private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
+  /** An immutable snapshot of the anchors. */
+  private static class Index {
+    final ImmutableMap<ByteBuffer, X509Certificate> byFingerprint;
+    final ImmutableListMultimap<ByteBuffer, X509Certificate> byKeyIdentifier;
+    final ImmutableListMultimap<X500Principal, X509Certificate> bySubject;
+
+    Index(Crypto crypto, Iterable<X509Certificate> anchors) throws U2FException {
+      Map<ByteBuffer, X509Certificate> fingerprints = Maps.newLinkedHashMap();
+      ImmutableListMultimap.Builder<ByteBuffer, X509Certificate> keyIdentifiers =
+          ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<X500Principal, X509Certificate> subjects =
+          ImmutableListMultimap.builder();
+      for (X509Certificate anchor : anchors) {
+        if (fingerprints.put(fingerprint(crypto, anchor), anchor) != null) {
+          continue;
+        }
+        if (anchor.getBasicConstraints() < 0) {
+          // not a CA, so it can only be trusted as itself
+          continue;
+        }
+        byte[] keyIdentifier = getSubjectKeyIdentifier(anchor);
+        if (keyIdentifier != null) {
+          keyIdentifiers.put(ByteBuffer.wrap(keyIdentifier), anchor);
+        }
+        subjects.put(anchor.getSubjectX500Principal(), anchor);
+      }
+      this.byFingerprint = ImmutableMap.copyOf(fingerprints);
+      this.byKeyIdentifier = keyIdentifiers.build();
+      this.bySubject = subjects.build();
+    }
+  }
+
+  private final Crypto crypto;
+  private final Policy policy;
+  private final Cache<ByteBuffer, Boolean> results;
+  // null if all anchors are given to this trust store
+  private final DataStore dataStore;
+  // guarded by this; the anchors last read from the data store, or null before the first read
+  private ImmutableSet<X509Certificate> storedAnchors;
+  // guarded by this; the set the data store returned when storedAnchors was last read
+  private Set<X509Certificate> storedAnchorsSource;
+  // guarded by this; the anchors given to the constructor or to addTrustAnchor
+  private ImmutableList<X509Certificate> givenAnchors;
+  private volatile Index index;
+
+  public AttestationTrustStore(Crypto crypto, Iterable<X509Certificate> anchors, Policy policy) {
+    this(crypto, anchors, policy, DEFAULT_RESULT_TTL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  public AttestationTrustStore(Crypto crypto, Iterable<X509Certificate> anchors, Policy policy,
+      long resultTtl, TimeUnit unit) {
+    this(crypto, null /* dataStore */, anchors, policy, resultTtl, unit);
+  }
+
+  /** Creates a trust store whose anchors are the trusted certificates of {@code dataStore}. */
+  public AttestationTrustStore(Crypto crypto, DataStore dataStore, Policy policy) {
+    this(crypto, dataStore, policy, DEFAULT_RESULT_TTL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  public AttestationTrustStore(Crypto crypto, DataStore dataStore, Policy policy,
+      long resultTtl, TimeUnit unit) {
+    this(crypto, dataStore, ImmutableList.<X509Certificate>of(), policy, resultTtl, unit);
+  }
+
+  private AttestationTrustStore(Crypto crypto, DataStore dataStore,
+      Iterable<X509Certificate> anchors, Policy policy, long resultTtl, TimeUnit unit) {
+    this.crypto = crypto;
+    this.policy = policy;
+    this.dataStore = dataStore;
+    this.results = CacheBuilder.newBuilder()
+        .maximumSize(DEFAULT_MAXIMUM_RESULTS)
+        .expireAfterWrite(resultTtl, unit)
+        .build();
+    this.givenAnchors = ImmutableList.copyOf(anchors);
+    try {
+      this.index = new Index(crypto, givenAnchors);
+    } catch (U2FException e) {
+      throw new RuntimeException("cannot index trust anchors", e);
+    }
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  public synchronized void addTrustAnchor(X509Certificate anchor) throws U2FException {
+    givenAnchors = ImmutableList.<X509Certificate>builder()
+        .addAll(givenAnchors)
+        .add(anchor)
+        .build();
+    reindex();
+  }
+
+  public boolean isTrusted(X509Certificate attestationCertificate) throws U2FException {
+    ByteBuffer fingerprint = fingerprint(crypto, attestationCertificate);
+    Boolean trusted = results.getIfPresent(fingerprint);
+    if (trusted == null) {
+      Index current = currentIndex();
+      trusted = validate(current, fingerprint, attestationCertificate);
+      results.put(fingerprint, trusted);
+      // a newer index forgets all results after it is published; if it was published before
+      // the put above, the result computed from the older one must be forgotten here
+      if (index != current) {
+        results.invalidate(fingerprint);
+      }
+    }
+    return trusted;
+  }
+
+  /**
+   * Returns the index, rebuilt first if the anchors in the data store have changed since they
+   * were last read.
+   *
+   * <p>A data store can only add anchors, so if it returns the same set as last time and the set
+   * has kept its size, the anchors are unchanged and are not compared one by one.
+   */
+  private Index currentIndex() throws U2FException {
+    if (dataStore == null) {
+      return index;
+    }
+    Set<X509Certificate> source = dataStore.getTrustedCertificates();
+    synchronized (this) {
+      if (source == storedAnchorsSource && source.size() == storedAnchors.size()) {
+        return index;
+      }
+    }
+    ImmutableSet<X509Certificate> anchors = ImmutableSet.copyOf(source);
+    synchronized (this) {
+      if (!anchors.equals(storedAnchors)) {
+        storedAnchors = anchors;
+        reindex();
+      }
+      storedAnchorsSource = source;
+      return index;
+    }
+  }
+
+  // called with the lock held
+  private void reindex() throws U2FException {
+    Iterable<X509Certificate> anchors = (storedAnchors == null)
+        ? givenAnchors : Iterables.concat(storedAnchors, givenAnchors);
+    index = new Index(crypto, anchors);
+    results.invalidateAll();
+  }
+
+  /**
+   * Applies the policy to {@code attestationCertificate}.
+   *
+   * @throws U2FException if the certificate is not trusted and the policy is
+   *     {@link Policy#ENFORCE}
+   */
+  public void checkTrusted(X509Certificate attestationCertificate) throws U2FException {
+    if (isTrusted(attestationCertificate)) {
+      return;
+    }
+    if (policy == Policy.ENFORCE) {
+      throw new U2FException("attestation certificate is not trusted: "
+          + attestationCertificate.getSubjectX500Principal());
+    }
+    Log.warning("attestation certificate is not trusted: "
+        + attestationCertificate.getSubjectX500Principal());
+  }
+
+  private static boolean validate(Index index, ByteBuffer fingerprint,
+      X509Certificate attestationCertificate) {
+    if (index.byFingerprint.containsKey(fingerprint)) {
+      return true;
+    }
+    List<X509Certificate> issuers = ImmutableList.of();
+    byte[] authorityKeyIdentifier = getAuthorityKeyIdentifier(attestationCertificate);
+    if (authorityKeyIdentifier != null) {
+      issuers = index.byKeyIdentifier.get(ByteBuffer.wrap(authorityKeyIdentifier));
+    }
+    if (issuers.isEmpty()) {
+      issuers = index.bySubject.get(attestationCertificate.getIssuerX500Principal());
+    }
+    for (X509Certificate issuer : issuers) {
+      try {
+        attestationCertificate.verify(issuer.getPublicKey());
+        return true;
+      } catch (GeneralSecurityException e) {
+        // not signed by this issuer, try the next one
+      }
+    }
+    return false;
+  }
+
+  private static ByteBuffer fingerprint(Crypto crypto, X509Certificate certificate)
+      throws U2FException {
+    try {
+      return ByteBuffer.wrap(crypto.computeSha256(certificate.getEncoded()));
+    } catch (CertificateEncodingException e) {
+      throw new U2FException("Cannot encode certificate", e);
+    }
+  }
+
+  private static byte[] getSubjectKeyIdentifier(X509Certificate certificate) {
+    byte[] extension = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID);
+    if (extension == null) {
+      return null;
+    }
+    try {
+      return SubjectKeyIdentifier.getInstance(ASN1OctetString.getInstance(extension).getOctets())
+          .getKeyIdentifier();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static byte[] getAuthorityKeyIdentifier(X509Certificate certificate) {
+    byte[] extension = certificate.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+    if (extension == null) {
+      return null;
+    }
+    try {
+      return AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(extension).getOctets())
+          .getKeyIdentifier();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
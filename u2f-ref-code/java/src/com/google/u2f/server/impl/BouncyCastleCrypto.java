@@ -6,6 +6,7 @@
 
 package com.google.u2f.server.impl;
 
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
@@ -25,6 +26,7 @@ import org.bouncycastle.jce.spec.ECPublicKeySpec;
 import org.bouncycastle.math.ec.ECPoint;
 
 import com.google.u2f.U2FException;
+import com.google.u2f.codec.RawMessageCodec;
 import com.google.u2f.server.Crypto;
 
 public class BouncyCastleCrypto implements Crypto {
@@ -32,6 +34,27 @@ public class BouncyCastleCrypto implements Crypto {
     Security.addProvider(new BouncyCastleProvider());
   }
 
+  protected static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+  protected static final String HASH_ALGORITHM = "SHA-256";
+  protected static final int SHA256_LENGTH = 32;
+
+  private static final X9ECParameters CURVE = SECNamedCurves.getByName("secp256r1");
+  private static final ECParameterSpec CURVE_SPEC = new ECParameterSpec(
+      CURVE.getCurve(),
+      CURVE.getG(),
+      CURVE.getN(),
+      CURVE.getH());
+
+  private final PublicKeyCache publicKeyCache;
+
+  public BouncyCastleCrypto() {
+    this(new PublicKeyCache());
+  }
+
+  public BouncyCastleCrypto(PublicKeyCache publicKeyCache) {
+    this.publicKeyCache = publicKeyCache;
+  }
+
   @Override
   public boolean verifySignature(X509Certificate attestationCertificate, byte[] signedBytes,
       byte[] signature) throws U2FException {
@@ -42,7 +65,7 @@ public class BouncyCastleCrypto implements Crypto {
   public boolean verifySignature(PublicKey publicKey, byte[] signedBytes,
       byte[] signature) throws U2FException {
     try {
-      Signature ecdsaSignature = Signature.getInstance("SHA256withECDSA");
+      Signature ecdsaSignature = getSignatureEngine();
       ecdsaSignature.initVerify(publicKey);
       ecdsaSignature.update(signedBytes);
       return ecdsaSignature.verify(signature);
@@ -55,24 +78,70 @@ public class BouncyCastleCrypto implements Crypto {
     }
   }
 
+  @Override
+  public boolean verifyRegistrationSignature(X509Certificate attestationCertificate,
+      byte[] applicationSha256, byte[] clientData, byte[] keyHandle, byte[] userPublicKey,
+      byte[] signature) throws U2FException {
+    try {
+      byte[] clientDataSha256 = computeSha256Into(clientData, getDigestBuffer());
+      Signature ecdsaSignature = getSignatureEngine();
+      ecdsaSignature.initVerify(attestationCertificate.getPublicKey());
+      RawMessageCodec.updateRegistrationSignedBytes(ecdsaSignature, applicationSha256,
+          clientDataSha256, keyHandle, userPublicKey);
+      return ecdsaSignature.verify(signature);
+    } catch (InvalidKeyException e) {
+      throw new U2FException("Error when verifying signature", e);
+    } catch (SignatureException e) {
+      throw new U2FException("Error when verifying signature", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when verifying signature", e);
+    }
+  }
+
+  @Override
+  public boolean verifyAuthenticateSignature(PublicKey publicKey, byte[] applicationSha256,
+      byte userPresence, int counter, byte[] clientData, byte[] signature) throws U2FException {
+    try {
+      byte[] clientDataSha256 = computeSha256Into(clientData, getDigestBuffer());
+      Signature ecdsaSignature = getSignatureEngine();
+      ecdsaSignature.initVerify(publicKey);
+      RawMessageCodec.updateAuthenticateSignedBytes(ecdsaSignature, applicationSha256,
+          userPresence, counter, clientDataSha256);
+      return ecdsaSignature.verify(signature);
+    } catch (InvalidKeyException e) {
+      throw new U2FException("Error when verifying signature", e);
+    } catch (SignatureException e) {
+      throw new U2FException("Error when verifying signature", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when verifying signature", e);
+    }
+  }
+
   @Override
   public PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException {
+    PublicKey publicKey = publicKeyCache.getIfPresent(encodedPublicKey);
+    if (publicKey == null) {
+      publicKey = decodePublicKeyUncached(encodedPublicKey);
+      publicKeyCache.put(encodedPublicKey, publicKey);
+    }
+    return publicKey;
+  }
+
+  public PublicKeyCache getPublicKeyCache() {
+    return publicKeyCache;
+  }
+
+  private static PublicKey decodePublicKeyUncached(byte[] encodedPublicKey) throws U2FException {
     try {
-      X9ECParameters curve = SECNamedCurves.getByName("secp256r1");
       ECPoint point;
       try {
-        point = curve.getCurve().decodePoint(encodedPublicKey);
+        point = CURVE.getCurve().decodePoint(encodedPublicKey);
       } catch (RuntimeException e) {
         throw new U2FException("Couldn't parse user public key", e);
       }
 
       return KeyFactory.getInstance("ECDSA").generatePublic(
-          new ECPublicKeySpec(point,
-              new ECParameterSpec(
-                  curve.getCurve(),
-                  curve.getG(),
-                  curve.getN(),
-                  curve.getH())));
+          new ECPublicKeySpec(point, CURVE_SPEC));
     } catch (InvalidKeySpecException e) {
       throw new U2FException("Error when decoding public key", e);
     } catch (NoSuchAlgorithmException e) {
@@ -83,9 +152,43 @@ public class BouncyCastleCrypto implements Crypto {
   @Override
   public byte[] computeSha256(byte[] bytes) throws U2FException {
     try {
-      return MessageDigest.getInstance("SHA-256").digest(bytes);
+      return getSha256Engine().digest(bytes);
     } catch (NoSuchAlgorithmException e) {
       throw new U2FException("Error when computing SHA-256", e);
     }
   }
+
+  /**
+   * Returns a signature engine for {@link #SIGNATURE_ALGORITHM}. Callers always re-initialize
+   * the engine before use.
+   */
+  protected Signature getSignatureEngine() throws NoSuchAlgorithmException {
+    return Signature.getInstance(SIGNATURE_ALGORITHM);
+  }
+
+  /** Returns a message digest for {@link #HASH_ALGORITHM} in its initial state. */
+  protected MessageDigest getSha256Engine() throws NoSuchAlgorithmException {
+    return MessageDigest.getInstance(HASH_ALGORITHM);
+  }
+
+  /**
+   * Returns a buffer of {@link #SHA256_LENGTH} bytes that the streaming verification methods
+   * hash the client data into. The buffer is only used for the duration of a single call.
+   */
+  protected byte[] getDigestBuffer() {
+    return new byte[SHA256_LENGTH];
+  }
+
+  private byte[] computeSha256Into(byte[] bytes, byte[] digestBuffer) throws U2FException {
+    try {
+      MessageDigest sha256 = getSha256Engine();
+      sha256.update(bytes);
+      sha256.digest(digestBuffer, 0, SHA256_LENGTH);
+      return digestBuffer;
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when computing SHA-256", e);
+    } catch (DigestException e) {
+      throw new U2FException("Error when computing SHA-256", e);
+    }
+  }
 }
@@ -0,0 +1,200 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * Caches the key lists of another {@link DataStore}, so that the several reads of an account
+ * during one sign-in go to the backing store only once.
+ *
+ * <p>The cache is bounded by the estimated size of the cached lists, and entries expire a fixed
+ * time after they were loaded. Every write to an account's keys, counter updates included, goes
+ * to the backing store first and then invalidates the account's entry. Sessions and trusted
+ * certificates are not cached.
+ *
+ * <p>A cached counter may be behind the stored one until the entry is invalidated; this only
+ * matters for the early counter check, since counters are advanced by the backing store.
+ */
+public class CachingDataStore implements DataStore {
+  public static final long DEFAULT_MAXIMUM_WEIGHT = 16 << 20;
+  public static final long DEFAULT_TTL_SECONDS = 60;
+
+  // estimated bytes retained by a cached key besides its key handle and public key
+  private static final int KEY_OVERHEAD = 128;
+  private static final int VERSION_STRIPES = 1024;
+
+  private static final Weigher<String, List<SecurityKeyData>> WEIGHER =
+      new Weigher<String, List<SecurityKeyData>>() {
+        @Override
+        public int weigh(String accountName, List<SecurityKeyData> keys) {
+          int weight = KEY_OVERHEAD + 2 * accountName.length();
+          for (SecurityKeyData key : keys) {
+            weight += KEY_OVERHEAD + key.getKeyHandle().length + key.getPublicKey().length;
+          }
+          return weight;
+        }
+      };
+
+  private final DataStore delegate;
+  private final Cache<String, List<SecurityKeyData>> keys;
+  // bumped by every write, so that a load that raced with a write is not cached
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  public CachingDataStore(DataStore delegate) {
+    this(delegate, DEFAULT_MAXIMUM_WEIGHT, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param maximumWeight the maximum estimated size of the cached key lists, in bytes
+   * @param ttl how long a key list is cached after it was loaded
+   */
+  public CachingDataStore(DataStore delegate, long maximumWeight, long ttl, TimeUnit unit) {
+    this(delegate, maximumWeight, ttl, unit, Ticker.systemTicker());
+  }
+
+  CachingDataStore(DataStore delegate, long maximumWeight, long ttl, TimeUnit unit,
+      Ticker ticker) {
+    this.delegate = delegate;
+    this.keys = CacheBuilder.newBuilder()
+        .maximumWeight(maximumWeight)
+        .weigher(WEIGHER)
+        .expireAfterWrite(ttl, unit)
+        .ticker(ticker)
+        .recordStats()
+        .build();
+  }
+
+  /** Hit and miss counts of the key list cache. */
+  public CacheStats stats() {
+    return keys.stats();
+  }
+
+  /** Drops all cached key lists, e.g. after the backing store was changed directly. */
+  public void invalidateAll() {
+    keys.invalidateAll();
+  }
+
+  @Override
+  public void addTrustedCertificate(X509Certificate certificate) {
+    delegate.addTrustedCertificate(certificate);
+  }
+
+  @Override
+  public Set<X509Certificate> getTrustedCertificates() {
+    return delegate.getTrustedCertificates();
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    return delegate.storeSessionData(sessionData);
+  }
+
+  @Override
+  public SignSessionData getSignSessionData(String sessionId) {
+    return delegate.getSignSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData getEnrollSessionData(String sessionId) {
+    return delegate.getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public SignSessionData consumeSignSessionData(String sessionId) {
+    return delegate.consumeSignSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData consumeEnrollSessionData(String sessionId) {
+    return delegate.consumeEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
+    delegate.addSecurityKeyData(accountName, securityKeyData);
+    invalidate(accountName);
+  }
+
+  @Override
+  public List<SecurityKeyData> getSecurityKeyData(String accountName) {
+    List<SecurityKeyData> cached = keys.getIfPresent(accountName);
+    if (cached != null) {
+      return cached;
+    }
+    int stripe = stripe(accountName);
+    long version = versions.get(stripe);
+    List<SecurityKeyData> loaded = ImmutableList.copyOf(delegate.getSecurityKeyData(accountName));
+    if (versions.get(stripe) == version) {
+      keys.put(accountName, loaded);
+      // a write that bumped the version before its invalidation may have missed our put
+      if (versions.get(stripe) != version) {
+        keys.invalidate(accountName);
+      }
+    }
+    return loaded;
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(String accountName, byte[] keyHandle) {
+    for (SecurityKeyData securityKeyData : getSecurityKeyData(accountName)) {
+      if (Arrays.equals(securityKeyData.getKeyHandle(), keyHandle)) {
+        return securityKeyData;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void removeSecuityKey(String accountName, byte[] publicKey) {
+    delegate.removeSecuityKey(accountName, publicKey);
+    invalidate(accountName);
+  }
+
+  @Deprecated
+  @Override
+  public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
+      int newCounterValue) {
+    delegate.updateSecurityKeyCounter(accountName, publicKey, newCounterValue);
+    invalidate(accountName);
+  }
+
+  @Override
+  public boolean advanceCounterIfGreater(String accountName, byte[] keyHandle,
+      int newCounterValue) {
+    boolean advanced = delegate.advanceCounterIfGreater(accountName, keyHandle, newCounterValue);
+    // also when not advanced: the cached counter may have been stale
+    invalidate(accountName);
+    return advanced;
+  }
+
+  private void invalidate(String accountName) {
+    versions.incrementAndGet(stripe(accountName));
+    keys.invalidate(accountName);
+  }
+
+  private static int stripe(String accountName) {
+    int hash = accountName.hashCode();
+    return (hash ^ (hash >>> 16)) & (VERSION_STRIPES - 1);
+  }
+}
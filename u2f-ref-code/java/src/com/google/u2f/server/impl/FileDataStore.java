@@ -0,0 +1,757 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.u2f.server.BatchDataStore;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.CounterUpdate;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SecurityKeyData.Transports;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * A data store that keeps security keys in memory and persists them to a file, so that they
+ * survive restarts.
+ *
+ * <p>Registrations, removals and counter updates are appended to a memory-mapped log, which is
+ * replayed into a {@link MemoryDataStore} on startup. A record is a length, a type and a payload,
+ * followed by a CRC32 of type and payload; replay stops at the first record that is incomplete
+ * or corrupt, which is where a crash interrupted an append. Attestation certificates are written
+ * once per log and referenced by id, so replay parses each distinct certificate once. The log is
+ * mapped in chunks, which records may straddle, so it is not limited to the 2 GB of one mapping.
+ * A change reaches memory only once it is in the log, so a change that fails to be appended
+ * leaves the store as it was.
+ *
+ * <p>When the log holds many more records than there are live keys, it is compacted: a snapshot
+ * with one record per live key is written and synced next to it, then renamed over it. Where
+ * the rename cannot replace the log, the log is deleted first; if the process dies in between,
+ * the next start finds only the snapshot and takes it as the log. The directory is not synced
+ * after the rename, which Java cannot do, so a machine crash shortly after a compaction may
+ * bring back the old log, losing the changes acknowledged since.
+ *
+ * <p>Changes are acknowledged only once they are durable. Concurrent changes are synced
+ * together through a {@link GroupCommit}, which waits up to a configurable delay for more
+ * changes to join before syncing. With {@link #NO_SYNC}, changes are acknowledged once they
+ * reach the operating system, and survive a crash of the process but not of the machine.
+ * Sessions and trusted certificates are not persisted.
+ */
+public class FileDataStore implements BatchDataStore, Closeable {
+  private static final Logger Log = Logger.getLogger(FileDataStore.class.getName());
+
+  public static final int DEFAULT_MAPPED_CHUNK_SIZE = 16 << 20;
+  public static final int DEFAULT_COMPACTION_MIN_RECORDS = 4096;
+  public static final long DEFAULT_MAX_COMMIT_DELAY_MICROS = 1000;
+  public static final int DEFAULT_MAX_COMMIT_BATCH = 256;
+  /** A commit delay that makes changes durable only on {@link #sync} or compaction. */
+  public static final long NO_SYNC = -1;
+
+  private static final int MAGIC = 0x5532464c; // "U2FL"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final String SNAPSHOT_SUFFIX = ".compact";
+
+  // record types
+  private static final byte CERTIFICATE = 1;
+  private static final byte ADD_KEY = 2;
+  private static final byte REMOVE_KEY = 3;
+  // no longer written, but still replayed from older logs
+  private static final byte SET_COUNTER = 4;
+  // written only by the deprecated updateSecurityKeyCounter
+  private static final byte SET_COUNTER_BY_PUBLIC_KEY = 5;
+  // applied only if greater, so that concurrent advances can be logged in any order
+  private static final byte ADVANCE_COUNTER = 6;
+
+  private static final int NO_CERTIFICATE = -1;
+  private static final int NO_TRANSPORTS = -1;
+
+  private final File file;
+  private final MemoryDataStore memoryDataStore;
+  private final int mappedChunkSize;
+  private final int compactionMinRecords;
+  // null with NO_SYNC
+  private final GroupCommit groupCommit;
+
+  // guarded by this
+  private RandomAccessFile randomAccessFile;
+  // chunk i maps the mappedChunkSize bytes of the log from i * mappedChunkSize on. Replaced, not
+  // changed, by compaction, so that a sync can force a list it took earlier.
+  private List<MappedByteBuffer> chunks;
+  // where the next record goes
+  private long position;
+  // the first chunk that may hold records that have not been synced
+  private int unsyncedChunk;
+  private Map<ByteBuffer, Integer> certificateIds;
+  private int records;
+  private int keys;
+  // the number of records appended since the log was opened, across compactions
+  private long sequence;
+
+  public FileDataStore(File file, SessionIdGenerator sessionIdGenerator) throws IOException {
+    this(file, new MemorySessionStore(sessionIdGenerator));
+  }
+
+  public FileDataStore(File file, SessionStore sessionStore) throws IOException {
+    this(file, sessionStore, DEFAULT_MAPPED_CHUNK_SIZE, DEFAULT_COMPACTION_MIN_RECORDS);
+  }
+
+  public FileDataStore(File file, SessionStore sessionStore, int mappedChunkSize,
+      int compactionMinRecords) throws IOException {
+    this(file, sessionStore, mappedChunkSize, compactionMinRecords,
+        DEFAULT_MAX_COMMIT_DELAY_MICROS, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * @param maxCommitDelay how long a change may wait for others to be synced with it, or
+   *     {@link #NO_SYNC}
+   */
+  public FileDataStore(File file, SessionStore sessionStore, int mappedChunkSize,
+      int compactionMinRecords, long maxCommitDelay, TimeUnit unit) throws IOException {
+    this.file = file;
+    this.memoryDataStore = new MemoryDataStore(sessionStore, MemoryDataStore.DEFAULT_LOCK_STRIPES);
+    this.mappedChunkSize = mappedChunkSize;
+    this.compactionMinRecords = compactionMinRecords;
+    this.groupCommit = (maxCommitDelay == NO_SYNC) ? null : new GroupCommit(
+        new GroupCommit.Syncable() {
+          @Override
+          public long sync() {
+            return forceUnsynced();
+          }
+        }, maxCommitDelay, unit, DEFAULT_MAX_COMMIT_BATCH);
+    synchronized (this) {
+      open();
+    }
+  }
+
+  @Override
+  public void addTrustedCertificate(X509Certificate certificate) {
+    memoryDataStore.addTrustedCertificate(certificate);
+  }
+
+  @Override
+  public Set<X509Certificate> getTrustedCertificates() {
+    return memoryDataStore.getTrustedCertificates();
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    return memoryDataStore.storeSessionData(sessionData);
+  }
+
+  @Override
+  public SignSessionData getSignSessionData(String sessionId) {
+    return memoryDataStore.getSignSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData getEnrollSessionData(String sessionId) {
+    return memoryDataStore.getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public SignSessionData consumeSignSessionData(String sessionId) {
+    return memoryDataStore.consumeSignSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData consumeEnrollSessionData(String sessionId) {
+    return memoryDataStore.consumeEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public Map<String, SignSessionData> consumeSignSessionData(Collection<String> sessionIds) {
+    return memoryDataStore.consumeSignSessionData(sessionIds);
+  }
+
+  @Override
+  public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
+    long appended;
+    synchronized (this) {
+      int certificates = certificateIds.size();
+      List<RecordWriter> records = encodeAddKey(certificateIds, accountName, securityKeyData);
+      try {
+        appended = append(records);
+      } catch (RuntimeException e) {
+        // a new certificate was not appended either
+        certificateIds.values().remove(certificates);
+        throw e;
+      }
+      memoryDataStore.addSecurityKeyData(accountName, securityKeyData);
+      keys++;
+      maybeCompact();
+    }
+    awaitDurable(appended);
+  }
+
+  @Override
+  public List<SecurityKeyData> getSecurityKeyData(String accountName) {
+    return memoryDataStore.getSecurityKeyData(accountName);
+  }
+
+  @Override
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames) {
+    return memoryDataStore.getSecurityKeyData(accountNames);
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(String accountName, byte[] keyHandle) {
+    return memoryDataStore.getSecurityKeyDataByKeyHandle(accountName, keyHandle);
+  }
+
+  @Override
+  public void removeSecuityKey(String accountName, byte[] publicKey) {
+    long appended;
+    synchronized (this) {
+      if (!hasPublicKey(accountName, publicKey)) {
+        return;
+      }
+      appended = append(new RecordWriter(REMOVE_KEY).putString(accountName).putBytes(publicKey));
+      memoryDataStore.removeSecuityKey(accountName, publicKey);
+      keys--;
+      maybeCompact();
+    }
+    awaitDurable(appended);
+  }
+
+  @Deprecated
+  @Override
+  public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
+      int newCounterValue) {
+    long appended;
+    synchronized (this) {
+      appended = append(new RecordWriter(SET_COUNTER_BY_PUBLIC_KEY)
+          .putString(accountName).putBytes(publicKey).putInt(newCounterValue));
+      memoryDataStore.updateSecurityKeyCounter(accountName, publicKey, newCounterValue);
+      maybeCompact();
+    }
+    awaitDurable(appended);
+  }
+
+  @Override
+  public boolean advanceCounterIfGreater(String accountName, byte[] keyHandle,
+      int newCounterValue) {
+    long appended = appendCounterAdvance(accountName, keyHandle, newCounterValue);
+    if (appended < 0) {
+      return false;
+    }
+    awaitDurable(appended);
+    return true;
+  }
+
+  @Override
+  public boolean[] advanceCountersIfGreater(List<CounterUpdate> counterUpdates) {
+    boolean[] result = new boolean[counterUpdates.size()];
+    long lastAppended = -1;
+    for (int i = 0; i < result.length; i++) {
+      CounterUpdate counterUpdate = counterUpdates.get(i);
+      long appended = appendCounterAdvance(counterUpdate.getAccountName(),
+          counterUpdate.getKeyHandle(), counterUpdate.getNewCounterValue());
+      result[i] = appended >= 0;
+      lastAppended = Math.max(lastAppended, appended);
+    }
+    // one commit for the whole batch
+    if (lastAppended >= 0) {
+      awaitDurable(lastAppended);
+    }
+    return result;
+  }
+
+  /** Forces appended records to the storage device. */
+  public void sync() {
+    forceUnsynced();
+  }
+
+  /** Replaces the log with a snapshot of the live keys. */
+  public synchronized void compact() throws IOException {
+    File snapshot = new File(file.getPath() + SNAPSHOT_SUFFIX);
+    Map<ByteBuffer, Integer> snapshotCertificateIds = Maps.newHashMap();
+    int snapshotRecords = 0;
+    int snapshotKeys = 0;
+    FileOutputStream out = new FileOutputStream(snapshot);
+    try {
+      writeHeader(out);
+      for (String accountName : memoryDataStore.getAccountNames()) {
+        for (SecurityKeyData securityKeyData : memoryDataStore.getSecurityKeyData(accountName)) {
+          for (RecordWriter record :
+              encodeAddKey(snapshotCertificateIds, accountName, securityKeyData)) {
+            out.write(record.toByteArray());
+            snapshotRecords++;
+          }
+          snapshotKeys++;
+        }
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    force(chunks);
+    randomAccessFile.close();
+    replaceLog(snapshot);
+    // the memory data store already holds what the snapshot holds, so there is nothing to replay
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    position = randomAccessFile.length();
+    chunks = Lists.newArrayList();
+    unsyncedChunk = 0;
+    map(Math.max(position, 1));
+    certificateIds = snapshotCertificateIds;
+    records = snapshotRecords;
+    keys = snapshotKeys;
+    Log.fine("compacted " + file + " to " + keys + " keys");
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    force(chunks);
+    randomAccessFile.close();
+  }
+
+  /** Renames {@code snapshot} over the log. */
+  private void replaceLog(File snapshot) throws IOException {
+    // atomic where the platform allows it; on Windows renameTo does not replace existing files
+    if (snapshot.renameTo(file)) {
+      return;
+    }
+    if (!file.delete() || !snapshot.renameTo(file)) {
+      throw new IOException("cannot replace " + file + " with " + snapshot);
+    }
+  }
+
+  /** Opens the log, creating it if needed, and replays it into the memory data store. */
+  private void open() throws IOException {
+    File snapshot = new File(file.getPath() + SNAPSHOT_SUFFIX);
+    if (!file.exists() && snapshot.exists()) {
+      // a compaction deleted the log and died before renaming the synced snapshot
+      replaceLog(snapshot);
+    }
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    if (randomAccessFile.length() == 0) {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        writeHeader(out);
+      } finally {
+        out.close();
+      }
+    }
+    chunks = Lists.newArrayList();
+    unsyncedChunk = 0;
+    map(randomAccessFile.length());
+
+    if (getInt(0) != MAGIC || getInt(4) != VERSION) {
+      throw new IOException(file + " is not a security key log");
+    }
+    certificateIds = Maps.newHashMap();
+    records = 0;
+    keys = 0;
+    replay();
+  }
+
+  /** Maps chunks until the first {@code length} bytes of the log are mapped. */
+  private void map(long length) throws IOException {
+    while (mappedLength() < length) {
+      chunks.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+          mappedLength(), mappedChunkSize));
+    }
+  }
+
+  private long mappedLength() {
+    return (long) chunks.size() * mappedChunkSize;
+  }
+
+  /** Copies {@code bytes.length} bytes of the log from {@code offset} on into {@code bytes}. */
+  private void read(long offset, byte[] bytes) {
+    for (int done = 0; done < bytes.length; ) {
+      ByteBuffer chunk = chunks.get((int) (offset / mappedChunkSize)).duplicate();
+      chunk.position((int) (offset % mappedChunkSize));
+      int length = Math.min(bytes.length - done, chunk.remaining());
+      chunk.get(bytes, done, length);
+      done += length;
+      offset += length;
+    }
+  }
+
+  /** Copies {@code bytes} into the log at {@code offset}, which must be mapped. */
+  private void write(long offset, byte[] bytes) {
+    for (int done = 0; done < bytes.length; ) {
+      ByteBuffer chunk = chunks.get((int) (offset / mappedChunkSize)).duplicate();
+      chunk.position((int) (offset % mappedChunkSize));
+      int length = Math.min(bytes.length - done, chunk.remaining());
+      chunk.put(bytes, done, length);
+      done += length;
+      offset += length;
+    }
+  }
+
+  private int getInt(long offset) {
+    byte[] bytes = new byte[4];
+    read(offset, bytes);
+    return ByteBuffer.wrap(bytes).getInt();
+  }
+
+  /**
+   * Forces the chunks that may hold unsynced records, and returns the sequence number of the
+   * last record they hold. Appends continue meanwhile; if the log is compacted meanwhile, the
+   * records are in the snapshot, which was synced.
+   */
+  private long forceUnsynced() {
+    List<MappedByteBuffer> syncedChunks;
+    int first;
+    int last;
+    long syncedSequence;
+    synchronized (this) {
+      syncedChunks = chunks;
+      first = unsyncedChunk;
+      last = (int) Math.min(position / mappedChunkSize, chunks.size() - 1);
+      syncedSequence = sequence;
+    }
+    force(syncedChunks.subList(first, last + 1));
+    synchronized (this) {
+      if (chunks == syncedChunks) {
+        // appends may still go to the last chunk
+        unsyncedChunk = Math.max(unsyncedChunk, last);
+      }
+    }
+    return syncedSequence;
+  }
+
+  private static void force(List<MappedByteBuffer> chunks) {
+    for (MappedByteBuffer chunk : chunks) {
+      chunk.force();
+    }
+  }
+
+  @SuppressWarnings("deprecation") // logs may hold counters set by updateSecurityKeyCounter
+  private void replay() throws IOException {
+    List<X509Certificate> certificates = Lists.newArrayList();
+    CertificateFactory certificateFactory;
+    try {
+      certificateFactory = CertificateFactory.getInstance("X.509");
+    } catch (CertificateException e) {
+      throw new IOException(e);
+    }
+    MemoryDataStore replayed = memoryDataStore;
+    CRC32 crc = new CRC32();
+    position = HEADER_SIZE;
+    while (position + 4 <= mappedLength()) {
+      long start = position;
+      int length = getInt(start);
+      if (length == 0) {
+        break;
+      }
+      if (length < 0 || start + 4 + length + 4 > mappedLength()) {
+        truncate(start);
+        break;
+      }
+      byte[] bytes = new byte[length];
+      read(start + 4, bytes);
+      crc.reset();
+      crc.update(bytes);
+      if ((int) crc.getValue() != getInt(start + 4 + length)) {
+        truncate(start);
+        break;
+      }
+      ByteBuffer record = ByteBuffer.wrap(bytes);
+      position = start + 4 + length + 4;
+      records++;
+
+      try {
+        byte type = record.get();
+        switch (type) {
+          case CERTIFICATE:
+            byte[] encoded = getBytes(record);
+            certificates.add((X509Certificate) certificateFactory.generateCertificate(
+                new ByteArrayInputStream(encoded)));
+            certificateIds.put(ByteBuffer.wrap(encoded), certificates.size() - 1);
+            break;
+          case ADD_KEY:
+            String accountName = getString(record);
+            long enrollmentTime = record.getLong();
+            int transportCount = record.getInt();
+            List<Transports> transports = null;
+            if (transportCount != NO_TRANSPORTS) {
+              transports = Lists.newArrayListWithCapacity(transportCount);
+              for (int i = 0; i < transportCount; i++) {
+                transports.add(Transports.values()[record.get()]);
+              }
+            }
+            byte[] keyHandle = getBytes(record);
+            byte[] publicKey = getBytes(record);
+            int certificateId = record.getInt();
+            int counter = record.getInt();
+            replayed.addSecurityKeyData(accountName, new SecurityKeyData(enrollmentTime,
+                transports, keyHandle, publicKey,
+                (certificateId == NO_CERTIFICATE) ? null : certificates.get(certificateId),
+                counter));
+            keys++;
+            break;
+          case REMOVE_KEY:
+            replayed.removeSecuityKey(getString(record), getBytes(record));
+            keys--;
+            break;
+          case SET_COUNTER: {
+            SecurityKeyData token =
+                replayed.getSecurityKeyDataByKeyHandle(getString(record), getBytes(record));
+            int newCounterValue = record.getInt();
+            if (token != null) {
+              token.setCounter(newCounterValue);
+            }
+            break;
+          }
+          case SET_COUNTER_BY_PUBLIC_KEY:
+            replayed.updateSecurityKeyCounter(getString(record), getBytes(record),
+                record.getInt());
+            break;
+          case ADVANCE_COUNTER:
+            replayed.advanceCounterIfGreater(getString(record), getBytes(record),
+                record.getInt());
+            break;
+          default:
+            throw new IOException("unknown record type " + type + " in " + file);
+        }
+      } catch (CertificateException e) {
+        throw new IOException("cannot parse certificate in " + file, e);
+      } catch (BufferUnderflowException e) {
+        throw new IOException("truncated record in " + file + " at " + start, e);
+      }
+    }
+  }
+
+  /**
+   * Drops the records from {@code start} on, which a crash left incomplete or corrupt. They are
+   * zeroed, so that records written after them before the crash cannot reappear once new records
+   * are appended in front of them.
+   */
+  private void truncate(long start) {
+    Log.warning("ignoring corrupt log tail of " + file + " at " + start);
+    for (int i = (int) (start / mappedChunkSize); i < chunks.size(); i++) {
+      MappedByteBuffer chunk = chunks.get(i);
+      int from = (i == start / mappedChunkSize) ? (int) (start % mappedChunkSize) : 0;
+      for (int j = from; j < mappedChunkSize; j++) {
+        chunk.put(j, (byte) 0);
+      }
+    }
+    force(chunks);
+    position = start;
+  }
+
+  private static List<RecordWriter> encodeAddKey(Map<ByteBuffer, Integer> certificateIds,
+      String accountName, SecurityKeyData securityKeyData) {
+    List<RecordWriter> result = Lists.newArrayListWithCapacity(2);
+    int certificateId = NO_CERTIFICATE;
+    X509Certificate certificate = securityKeyData.getAttestationCertificate();
+    if (certificate != null) {
+      byte[] encoded;
+      try {
+        encoded = certificate.getEncoded();
+      } catch (CertificateEncodingException e) {
+        throw new RuntimeException(e);
+      }
+      Integer id = certificateIds.get(ByteBuffer.wrap(encoded));
+      if (id == null) {
+        id = certificateIds.size();
+        certificateIds.put(ByteBuffer.wrap(encoded), id);
+        result.add(new RecordWriter(CERTIFICATE).putBytes(encoded));
+      }
+      certificateId = id;
+    }
+
+    RecordWriter record = new RecordWriter(ADD_KEY)
+        .putString(accountName)
+        .putLong(securityKeyData.getEnrollmentTime());
+    List<Transports> transports = securityKeyData.getTransports();
+    if (transports == null) {
+      record.putInt(NO_TRANSPORTS);
+    } else {
+      record.putInt(transports.size());
+      for (Transports transport : transports) {
+        record.putByte((byte) transport.ordinal());
+      }
+    }
+    record.putBytes(securityKeyData.getKeyHandle())
+        .putBytes(securityKeyData.getPublicKey())
+        .putInt(certificateId)
+        .putInt(securityKeyData.getCounter());
+    result.add(record);
+    return result;
+  }
+
+  /**
+   * Appends the advance of a counter and applies it in memory, without waiting for it to be
+   * durable. Returns the record's sequence number, or -1 if the counter was not advanced.
+   */
+  private long appendCounterAdvance(String accountName, byte[] keyHandle, int newCounterValue) {
+    // under the log lock, so that the log orders counter changes as memory does
+    synchronized (this) {
+      SecurityKeyData securityKeyData =
+          memoryDataStore.getSecurityKeyDataByKeyHandle(accountName, keyHandle);
+      if (securityKeyData == null || newCounterValue <= securityKeyData.getCounter()) {
+        return -1;
+      }
+      long appended = append(new RecordWriter(ADVANCE_COUNTER)
+          .putString(accountName).putBytes(keyHandle).putInt(newCounterValue));
+      // counters only change under the lock, so this advances
+      securityKeyData.advanceCounterIfGreater(newCounterValue);
+      maybeCompact();
+      return appended;
+    }
+  }
+
+  private boolean hasPublicKey(String accountName, byte[] publicKey) {
+    for (SecurityKeyData securityKeyData : memoryDataStore.getSecurityKeyData(accountName)) {
+      if (Arrays.equals(securityKeyData.getPublicKey(), publicKey)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void awaitDurable(long appended) {
+    if (groupCommit != null) {
+      groupCommit.awaitDurable(appended);
+    }
+  }
+
+  /**
+   * Appends the records, and returns the sequence number of the last one. Appends all of them or,
+   * if the log cannot grow, none.
+   */
+  private long append(List<RecordWriter> records) {
+    List<byte[]> encoded = Lists.newArrayListWithCapacity(records.size());
+    long end = position;
+    for (RecordWriter record : records) {
+      byte[] bytes = record.toByteArray();
+      encoded.add(bytes);
+      end += bytes.length;
+    }
+    try {
+      // keep a zero length after the last record, so that replay knows where the log ends
+      map(end + 4);
+    } catch (IOException e) {
+      throw new RuntimeException("cannot grow " + file, e);
+    }
+    for (byte[] bytes : encoded) {
+      write(position, bytes);
+      position += bytes.length;
+      this.records++;
+      sequence++;
+    }
+    return sequence;
+  }
+
+  /** Appends the record, and returns its sequence number. */
+  private long append(RecordWriter record) {
+    return append(Collections.singletonList(record));
+  }
+
+  private void maybeCompact() {
+    if (records >= compactionMinRecords && records > 2 * keys) {
+      try {
+        compact();
+      } catch (IOException e) {
+        throw new RuntimeException("cannot compact " + file, e);
+      }
+    }
+  }
+
+  private static void writeHeader(FileOutputStream out) throws IOException {
+    out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+  }
+
+  private static byte[] getBytes(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return bytes;
+  }
+
+  private static String getString(ByteBuffer record) {
+    return new String(getBytes(record), Charsets.UTF_8);
+  }
+
+  /** Builds one record: length, type and payload, and the CRC32 of type and payload. */
+  private static class RecordWriter {
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    RecordWriter(byte type) {
+      buffer.position(4);
+      buffer.put(type);
+    }
+
+    RecordWriter putByte(byte value) {
+      ensureRemaining(1).put(value);
+      return this;
+    }
+
+    RecordWriter putInt(int value) {
+      ensureRemaining(4).putInt(value);
+      return this;
+    }
+
+    RecordWriter putLong(long value) {
+      ensureRemaining(8).putLong(value);
+      return this;
+    }
+
+    RecordWriter putBytes(byte[] value) {
+      ensureRemaining(4 + value.length).putInt(value.length).put(value);
+      return this;
+    }
+
+    RecordWriter putString(String value) {
+      return putBytes(value.getBytes(Charsets.UTF_8));
+    }
+
+    byte[] toByteArray() {
+      int length = buffer.position() - 4;
+      CRC32 crc = new CRC32();
+      crc.update(buffer.array(), 4, length);
+      ByteBuffer record = ByteBuffer.allocate(length + 8);
+      record.putInt(length);
+      record.put(buffer.array(), 4, length);
+      record.putInt((int) crc.getValue());
+      return record.array();
+    }
+
+    private ByteBuffer ensureRemaining(int bytes) {
+      if (buffer.remaining() < bytes) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+            buffer.position() + bytes));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+      return buffer;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the records of an append-only log durable in groups.
+ *
+ * <p>Writers append a record, then wait in {@link #awaitDurable} until a sync covers it. The
+ * first writer to wait becomes the leader: it gives other writers up to the maximum delay to
+ * join, syncs once for all of them, and wakes them up. Writers that arrive while a sync is in
+ * progress wait for the next one. No background thread is involved.
+ */
+class GroupCommit {
+  /** The log being committed. */
+  interface Syncable {
+    /**
+     * Forces the records appended so far to storage, and returns the sequence number of the
+     * last one.
+     */
+    long sync();
+  }
+
+  private final Syncable syncable;
+  private final long maxDelayNanos;
+  private final int maxBatch;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition joined = lock.newCondition();
+  private final Condition synced = lock.newCondition();
+
+  // guarded by lock
+  private long durableSequence;
+  private boolean syncing;
+  private int waiting;
+
+  /**
+   * @param maxDelay how long a leader waits for other writers before syncing
+   * @param maxBatch the number of waiting writers after which a leader syncs without waiting
+   */
+  GroupCommit(Syncable syncable, long maxDelay, TimeUnit unit, int maxBatch) {
+    this.syncable = syncable;
+    this.maxDelayNanos = unit.toNanos(maxDelay);
+    this.maxBatch = maxBatch;
+  }
+
+  /** Returns once the record with sequence number {@code sequence} is durable. */
+  void awaitDurable(long sequence) {
+    lock.lock();
+    try {
+      waiting++;
+      joined.signal();
+      while (durableSequence < sequence) {
+        if (syncing) {
+          synced.awaitUninterruptibly();
+          continue;
+        }
+        syncing = true;
+        long remaining = maxDelayNanos;
+        boolean interrupted = false;
+        while (waiting < maxBatch && remaining > 0) {
+          try {
+            remaining = joined.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            // sync right away, but keep the interrupt for the caller
+            interrupted = true;
+            break;
+          }
+        }
+        long syncedSequence = durableSequence;
+        lock.unlock();
+        try {
+          syncedSequence = syncable.sync();
+        } finally {
+          lock.lock();
+          syncing = false;
+          durableSequence = Math.max(durableSequence, syncedSequence);
+          // on failure, the next waiter becomes the leader and tries again
+          synced.signalAll();
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    } finally {
+      waiting--;
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A small pool of JDBC connections, each with its own cache of prepared statements.
+ *
+ * <p>Connections are opened lazily, up to a maximum, and run with auto-commit off. A connection
+ * that was used in a failed operation is closed rather than returned to the pool, since its
+ * state is unknown. Connections that sat idle for a while are validated before reuse.
+ */
+class JdbcConnectionPool implements Closeable {
+  private static final Logger Log = Logger.getLogger(JdbcConnectionPool.class.getName());
+
+  private static final long VALIDATION_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+  /** Opens new connections for the pool. */
+  interface ConnectionFactory {
+    Connection connect() throws SQLException;
+  }
+
+  /** A pooled connection, which prepares each statement once. */
+  static class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = Maps.newHashMap();
+    private long releaseNanos;
+
+    PooledConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    Connection getConnection() {
+      return connection;
+    }
+
+    /** Returns the statement for {@code sql}, preparing it on first use. */
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = connection.prepareStatement(sql);
+        statements.put(sql, statement);
+      }
+      return statement;
+    }
+
+    void close() {
+      try {
+        // closing the connection closes its statements
+        connection.close();
+      } catch (SQLException e) {
+        Log.log(Level.FINE, "cannot close connection", e);
+      }
+    }
+  }
+
+  private final ConnectionFactory connectionFactory;
+  private final long acquireTimeoutNanos;
+  private final Semaphore permits;
+  private final BlockingQueue<PooledConnection> idle =
+      new LinkedBlockingQueue<PooledConnection>();
+  private volatile boolean closed;
+
+  /**
+   * @param acquireTimeout how long {@link #acquire} waits for a connection when all are in use
+   */
+  JdbcConnectionPool(ConnectionFactory connectionFactory, int maxConnections,
+      long acquireTimeout, TimeUnit unit) {
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("at least one connection is needed");
+    }
+    this.connectionFactory = connectionFactory;
+    this.acquireTimeoutNanos = unit.toNanos(acquireTimeout);
+    this.permits = new Semaphore(maxConnections, true /* fair */);
+  }
+
+  /** Takes a connection from the pool; it must be given back with {@link #release}. */
+  PooledConnection acquire() throws SQLException {
+    if (closed) {
+      throw new SQLException("connection pool is closed");
+    }
+    try {
+      if (!permits.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS)) {
+        throw new SQLTimeoutException("no connection available");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted while waiting for a connection", e);
+    }
+    try {
+      PooledConnection pooledConnection;
+      while ((pooledConnection = idle.poll()) != null) {
+        if (System.nanoTime() - pooledConnection.releaseNanos < VALIDATION_INTERVAL_NANOS
+            || pooledConnection.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+          return pooledConnection;
+        }
+        pooledConnection.close();
+      }
+      Connection connection = connectionFactory.connect();
+      try {
+        connection.setAutoCommit(false);
+      } catch (SQLException e) {
+        connection.close();
+        throw e;
+      }
+      return new PooledConnection(connection);
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Gives a connection back to the pool.
+   *
+   * @param reusable false if the connection may be in an unknown state, and must be closed
+   */
+  void release(PooledConnection pooledConnection, boolean reusable) {
+    if (reusable && !closed) {
+      pooledConnection.releaseNanos = System.nanoTime();
+      idle.add(pooledConnection);
+      if (closed && idle.remove(pooledConnection)) {
+        // close() ran concurrently and missed this connection
+        pooledConnection.close();
+      }
+    } else {
+      pooledConnection.close();
+    }
+    permits.release();
+  }
+
+  /** Closes the idle connections; connections in use are closed when they are released. */
+  @Override
+  public void close() {
+    closed = true;
+    PooledConnection pooledConnection;
+    while ((pooledConnection = idle.poll()) != null) {
+      pooledConnection.close();
+    }
+  }
+}
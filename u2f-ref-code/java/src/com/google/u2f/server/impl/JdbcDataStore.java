@@ -0,0 +1,450 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.io.Closeable;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SecurityKeyData.Transports;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * A data store that keeps security keys in a relational database, through any JDBC driver.
+ *
+ * <p>Keys are rows of {@code u2f_security_key}, keyed by account name and key handle.
+ * Attestation certificates, which are usually shared by many keys, are rows of
+ * {@code u2f_certificate}, keyed by the SHA-256 of their encoding. Binary values are stored as
+ * web-safe base64, so that the schema only uses column types every database has; see
+ * {@link #SCHEMA}.
+ *
+ * <p>Connections come from a small pool and keep their prepared statements. Counters are
+ * advanced with a single conditional {@code UPDATE}, so concurrent sign-ins need no locking
+ * beyond the row lock the database takes. Sessions and trusted certificates are not persisted.
+ */
+public class JdbcDataStore implements DataStore, Closeable {
+  private static final Logger Log = Logger.getLogger(JdbcDataStore.class.getName());
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 8;
+  public static final long DEFAULT_ACQUIRE_TIMEOUT_SECONDS = 30;
+
+  /** The statements that create the tables used by this data store. */
+  public static final List<String> SCHEMA = ImmutableList.of(
+      "CREATE TABLE u2f_certificate ("
+          + "fingerprint VARCHAR(44) NOT NULL PRIMARY KEY, "
+          + "encoded VARCHAR(8192) NOT NULL)",
+      "CREATE TABLE u2f_security_key ("
+          + "account_name VARCHAR(255) NOT NULL, "
+          + "key_handle VARCHAR(344) NOT NULL, "
+          + "public_key VARCHAR(128) NOT NULL, "
+          + "certificate VARCHAR(44) REFERENCES u2f_certificate (fingerprint), "
+          + "transports VARCHAR(128), "
+          + "enrollment_time BIGINT NOT NULL, "
+          + "counter INTEGER NOT NULL, "
+          + "PRIMARY KEY (account_name, key_handle))");
+
+  // SQLSTATE class of integrity constraint violations, such as duplicate keys
+  private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+  private static final String SELECT_KEYS =
+      "SELECT k.key_handle, k.public_key, k.transports, k.enrollment_time, k.counter, c.encoded "
+          + "FROM u2f_security_key k LEFT JOIN u2f_certificate c "
+          + "ON k.certificate = c.fingerprint ";
+  private static final String SELECT_ACCOUNT_KEYS =
+      SELECT_KEYS + "WHERE k.account_name = ? ORDER BY k.enrollment_time, k.key_handle";
+  private static final String SELECT_KEY_BY_KEY_HANDLE =
+      SELECT_KEYS + "WHERE k.account_name = ? AND k.key_handle = ?";
+  private static final String INSERT_CERTIFICATE =
+      "INSERT INTO u2f_certificate (fingerprint, encoded) VALUES (?, ?)";
+  private static final String DELETE_KEY_BY_KEY_HANDLE =
+      "DELETE FROM u2f_security_key WHERE account_name = ? AND key_handle = ?";
+  private static final String INSERT_KEY = "INSERT INTO u2f_security_key (account_name, "
+      + "key_handle, public_key, certificate, transports, enrollment_time, counter) "
+      + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+  private static final String DELETE_KEY =
+      "DELETE FROM u2f_security_key WHERE account_name = ? AND public_key = ?";
+  private static final String UPDATE_COUNTER =
+      "UPDATE u2f_security_key SET counter = ? WHERE account_name = ? AND public_key = ?";
+  private static final String ADVANCE_COUNTER = "UPDATE u2f_security_key SET counter = ? "
+      + "WHERE account_name = ? AND key_handle = ? AND counter < ?";
+
+  private static final Joiner TRANSPORTS_JOINER = Joiner.on(',');
+  private static final Splitter TRANSPORTS_SPLITTER = Splitter.on(',').omitEmptyStrings();
+
+  /** Work done in one transaction. */
+  private interface Transaction<T> {
+    T run(JdbcConnectionPool.PooledConnection connection) throws SQLException;
+  }
+
+  private final JdbcConnectionPool connectionPool;
+  private final SessionStore sessionStore;
+  private final Set<X509Certificate> trustedCertificates = Sets.newConcurrentHashSet();
+  private final AttestationCertificateCache certificateCache = new AttestationCertificateCache();
+  // fingerprints of certificates known to be in the database
+  private final Set<String> storedCertificates = Sets.newConcurrentHashSet();
+
+  public JdbcDataStore(String url, Properties info, SessionIdGenerator sessionIdGenerator) {
+    this(url, info, new MemorySessionStore(sessionIdGenerator), DEFAULT_MAX_CONNECTIONS);
+  }
+
+  public JdbcDataStore(final String url, final Properties info, SessionStore sessionStore,
+      int maxConnections) {
+    this(new JdbcConnectionPool.ConnectionFactory() {
+          @Override
+          public Connection connect() throws SQLException {
+            return DriverManager.getConnection(url, info);
+          }
+        }, sessionStore, maxConnections);
+  }
+
+  /**
+   * @param dataSource where connections come from; if it pools connections itself, use a small
+   *     {@code maxConnections}, since this data store keeps the connections it opens
+   */
+  public JdbcDataStore(final DataSource dataSource, SessionStore sessionStore,
+      int maxConnections) {
+    this(new JdbcConnectionPool.ConnectionFactory() {
+          @Override
+          public Connection connect() throws SQLException {
+            return dataSource.getConnection();
+          }
+        }, sessionStore, maxConnections);
+  }
+
+  JdbcDataStore(JdbcConnectionPool.ConnectionFactory connectionFactory,
+      SessionStore sessionStore, int maxConnections) {
+    this.connectionPool = new JdbcConnectionPool(connectionFactory, maxConnections,
+        DEFAULT_ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    this.sessionStore = sessionStore;
+  }
+
+  /** Creates the tables of {@link #SCHEMA}. Fails if they exist already. */
+  public void createSchema() {
+    inTransaction(new Transaction<Void>() {
+      @Override
+      public Void run(JdbcConnectionPool.PooledConnection connection) throws SQLException {
+        Statement statement = connection.getConnection().createStatement();
+        try {
+          for (String sql : SCHEMA) {
+            statement.executeUpdate(sql);
+          }
+        } finally {
+          statement.close();
+        }
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    connectionPool.close();
+  }
+
+  @Override
+  public void addTrustedCertificate(X509Certificate certificate) {
+    trustedCertificates.add(certificate);
+  }
+
+  @Override
+  public Set<X509Certificate> getTrustedCertificates() {
+    return trustedCertificates;
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    return sessionStore.storeSessionData(sessionData);
+  }
+
+  @Override
+  public SignSessionData getSignSessionData(String sessionId) {
+    return (SignSessionData) sessionStore.getSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData getEnrollSessionData(String sessionId) {
+    return sessionStore.getSessionData(sessionId);
+  }
+
+  @Override
+  public SignSessionData consumeSignSessionData(String sessionId) {
+    return (SignSessionData) sessionStore.consumeSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData consumeEnrollSessionData(String sessionId) {
+    return sessionStore.consumeSessionData(sessionId);
+  }
+
+  @Override
+  public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
+    addSecurityKeyData(Collections.singletonMap(accountName, securityKeyData).entrySet());
+  }
+
+  /**
+   * Adds many keys at once, e.g. when migrating registrations from elsewhere. The keys are
+   * inserted in batches, in one transaction.
+   */
+  public void addSecurityKeyData(ListMultimap<String, SecurityKeyData> securityKeyData) {
+    addSecurityKeyData(securityKeyData.entries());
+  }
+
+  private void addSecurityKeyData(
+      Iterable<? extends Map.Entry<String, SecurityKeyData>> securityKeyData) {
+    // the table holds one key per account and key handle, so a later registration of a key
+    // handle replaces an earlier one
+    final Map<String, Map.Entry<String, SecurityKeyData>> entries = Maps.newLinkedHashMap();
+    for (Map.Entry<String, SecurityKeyData> entry : securityKeyData) {
+      String key = entry.getKey() + ' ' + encode(entry.getValue().getKeyHandle());
+      entries.remove(key);
+      entries.put(key, entry);
+    }
+    final Map<X509Certificate, String> fingerprints = Maps.newHashMap();
+    for (Map.Entry<String, SecurityKeyData> entry : entries.values()) {
+      X509Certificate certificate = entry.getValue().getAttestationCertificate();
+      if (certificate != null && !fingerprints.containsKey(certificate)) {
+        fingerprints.put(certificate, storeCertificate(certificate));
+      }
+    }
+    inTransaction(new Transaction<Void>() {
+      @Override
+      public Void run(JdbcConnectionPool.PooledConnection connection) throws SQLException {
+        PreparedStatement delete = connection.prepare(DELETE_KEY_BY_KEY_HANDLE);
+        PreparedStatement insert = connection.prepare(INSERT_KEY);
+        for (Map.Entry<String, SecurityKeyData> entry : entries.values()) {
+          SecurityKeyData securityKeyData = entry.getValue();
+          String keyHandle = encode(securityKeyData.getKeyHandle());
+          delete.setString(1, entry.getKey());
+          delete.setString(2, keyHandle);
+          delete.addBatch();
+          String fingerprint = fingerprints.get(securityKeyData.getAttestationCertificate());
+          List<Transports> transports = securityKeyData.getTransports();
+          insert.setString(1, entry.getKey());
+          insert.setString(2, keyHandle);
+          insert.setString(3, encode(securityKeyData.getPublicKey()));
+          if (fingerprint == null) {
+            insert.setNull(4, Types.VARCHAR);
+          } else {
+            insert.setString(4, fingerprint);
+          }
+          if (transports == null) {
+            insert.setNull(5, Types.VARCHAR);
+          } else {
+            insert.setString(5, TRANSPORTS_JOINER.join(transports));
+          }
+          insert.setLong(6, securityKeyData.getEnrollmentTime());
+          insert.setInt(7, securityKeyData.getCounter());
+          insert.addBatch();
+        }
+        delete.executeBatch();
+        insert.executeBatch();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public List<SecurityKeyData> getSecurityKeyData(final String accountName) {
+    return inTransaction(new Transaction<List<SecurityKeyData>>() {
+      @Override
+      public List<SecurityKeyData> run(JdbcConnectionPool.PooledConnection connection)
+          throws SQLException {
+        PreparedStatement select = connection.prepare(SELECT_ACCOUNT_KEYS);
+        select.setString(1, accountName);
+        return readKeys(select);
+      }
+    });
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(final String accountName,
+      final byte[] keyHandle) {
+    List<SecurityKeyData> keys = inTransaction(new Transaction<List<SecurityKeyData>>() {
+      @Override
+      public List<SecurityKeyData> run(JdbcConnectionPool.PooledConnection connection)
+          throws SQLException {
+        PreparedStatement select = connection.prepare(SELECT_KEY_BY_KEY_HANDLE);
+        select.setString(1, accountName);
+        select.setString(2, encode(keyHandle));
+        return readKeys(select);
+      }
+    });
+    return keys.isEmpty() ? null : keys.get(0);
+  }
+
+  @Override
+  public void removeSecuityKey(String accountName, byte[] publicKey) {
+    // attestation certificates stay, since other keys may refer to them
+    executeUpdate(DELETE_KEY, accountName, encode(publicKey));
+  }
+
+  @Deprecated
+  @Override
+  public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
+      int newCounterValue) {
+    executeUpdate(UPDATE_COUNTER, newCounterValue, accountName, encode(publicKey));
+  }
+
+  @Override
+  public boolean advanceCounterIfGreater(String accountName, byte[] keyHandle,
+      int newCounterValue) {
+    return executeUpdate(ADVANCE_COUNTER,
+        newCounterValue, accountName, encode(keyHandle), newCounterValue) > 0;
+  }
+
+  /** Stores {@code certificate} unless it is stored already, and returns its fingerprint. */
+  private String storeCertificate(X509Certificate certificate) {
+    final byte[] encoded;
+    try {
+      encoded = certificate.getEncoded();
+    } catch (CertificateEncodingException e) {
+      throw new IllegalArgumentException("cannot encode attestation certificate", e);
+    }
+    final String fingerprint = encode(Hashing.sha256().hashBytes(encoded).asBytes());
+    if (storedCertificates.contains(fingerprint)) {
+      return fingerprint;
+    }
+    try {
+      // in a transaction of its own, so that a duplicate does not fail the caller's
+      inTransactionOrThrow(new Transaction<Void>() {
+        @Override
+        public Void run(JdbcConnectionPool.PooledConnection connection) throws SQLException {
+          PreparedStatement insert = connection.prepare(INSERT_CERTIFICATE);
+          insert.setString(1, fingerprint);
+          insert.setString(2, encode(encoded));
+          insert.executeUpdate();
+          return null;
+        }
+      });
+    } catch (SQLException e) {
+      if (e.getSQLState() == null || !e.getSQLState().startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+        throw new RuntimeException(e);
+      }
+      // stored already, by an earlier run or another server
+    }
+    storedCertificates.add(fingerprint);
+    return fingerprint;
+  }
+
+  private List<SecurityKeyData> readKeys(PreparedStatement select) throws SQLException {
+    List<SecurityKeyData> keys = Lists.newArrayList();
+    ResultSet resultSet = select.executeQuery();
+    try {
+      while (resultSet.next()) {
+        List<Transports> transports = null;
+        String transportNames = resultSet.getString(3);
+        if (transportNames != null) {
+          transports = Lists.newArrayList();
+          for (String transport : TRANSPORTS_SPLITTER.split(transportNames)) {
+            transports.add(Transports.valueOf(transport));
+          }
+        }
+        keys.add(new SecurityKeyData(
+            resultSet.getLong(4),
+            transports,
+            Base64.decodeBase64(resultSet.getString(1)),
+            Base64.decodeBase64(resultSet.getString(2)),
+            decodeCertificate(resultSet.getString(6)),
+            resultSet.getInt(5)));
+      }
+    } finally {
+      resultSet.close();
+    }
+    return keys;
+  }
+
+  private X509Certificate decodeCertificate(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    byte[] data = Base64.decodeBase64(encoded);
+    try {
+      return certificateCache.resolve(data, 0, data.length);
+    } catch (CertificateException e) {
+      throw new RuntimeException("cannot parse stored attestation certificate", e);
+    }
+  }
+
+  private int executeUpdate(final String sql, final Object... parameters) {
+    return inTransaction(new Transaction<Integer>() {
+      @Override
+      public Integer run(JdbcConnectionPool.PooledConnection connection) throws SQLException {
+        PreparedStatement update = connection.prepare(sql);
+        for (int i = 0; i < parameters.length; i++) {
+          update.setObject(i + 1, parameters[i]);
+        }
+        return update.executeUpdate();
+      }
+    });
+  }
+
+  private <T> T inTransaction(Transaction<T> transaction) {
+    try {
+      return inTransactionOrThrow(transaction);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Runs {@code transaction} and commits it, or rolls it back if it fails. */
+  private <T> T inTransactionOrThrow(Transaction<T> transaction) throws SQLException {
+    JdbcConnectionPool.PooledConnection connection = connectionPool.acquire();
+    boolean committed = false;
+    try {
+      T result = transaction.run(connection);
+      connection.getConnection().commit();
+      committed = true;
+      return result;
+    } finally {
+      if (!committed) {
+        try {
+          connection.getConnection().rollback();
+        } catch (SQLException e) {
+          Log.log(Level.FINE, "cannot roll back", e);
+        }
+      }
+      connectionPool.release(connection, committed);
+    }
+  }
+
+  private static String encode(byte[] data) {
+    return Base64.encodeBase64URLSafeString(data);
+  }
+}
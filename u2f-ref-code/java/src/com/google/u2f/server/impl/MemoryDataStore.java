@@ -6,61 +6,166 @@
 
 package com.google.u2f.server.impl;
 
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
-import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.u2f.server.DataStore;
+import com.google.common.util.concurrent.Striped;
+import com.google.u2f.server.BatchDataStore;
 import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.CounterUpdate;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
 
-public class MemoryDataStore implements DataStore {
-  private final Set<X509Certificate> trustedCertificateDataBase = Sets.newHashSet();
-  private final HashMap<String, EnrollSessionData> sessionDataBase = Maps.newHashMap();
-  private final HashMap<String, List<SecurityKeyData>> securityKeyDataBase = Maps.newHashMap();
-  private final SessionIdGenerator sessionIdGenerator;
+/**
+ * An in-memory data store that can be shared by request threads.
+ *
+ * <p>Sessions, keys and trusted certificates are kept in concurrent collections. The keys of an
+ * account are an immutable snapshot that writers replace, so reads never block. Writers to the
+ * same account are serialized by a striped lock, and writers to different accounts rarely
+ * contend.
+ *
+ * <p>Sessions are kept by a {@link SessionStore}, on the heap unless another store is given.
+ */
+public class MemoryDataStore implements BatchDataStore {
+  public static final int DEFAULT_LOCK_STRIPES = 64;
+  public static final long DEFAULT_SESSION_TTL_SECONDS =
+      MemorySessionStore.DEFAULT_SESSION_TTL_SECONDS;
+
+  /**
+   * The keys of one account, in registration order, indexed by key handle and by public key.
+   * Immutable; changes create a new snapshot.
+   */
+  private static class AccountKeys {
+    static final AccountKeys EMPTY = new AccountKeys(ImmutableList.<SecurityKeyData>of());
+
+    final ImmutableList<SecurityKeyData> keys;
+    final ImmutableMap<ByteBuffer, SecurityKeyData> byKeyHandle;
+    final ImmutableMap<ByteBuffer, SecurityKeyData> byPublicKey;
+
+    AccountKeys(ImmutableList<SecurityKeyData> keys) {
+      // the first registration of a key handle or public key wins, as in the searches from the
+      // start that removals and counter updates used to do
+      Map<ByteBuffer, SecurityKeyData> byKeyHandle = Maps.newHashMap();
+      Map<ByteBuffer, SecurityKeyData> byPublicKey = Maps.newHashMap();
+      for (SecurityKeyData securityKeyData : keys) {
+        ByteBuffer keyHandle = ByteBuffer.wrap(securityKeyData.getKeyHandle());
+        if (!byKeyHandle.containsKey(keyHandle)) {
+          byKeyHandle.put(keyHandle, securityKeyData);
+        }
+        ByteBuffer publicKey = ByteBuffer.wrap(securityKeyData.getPublicKey());
+        if (!byPublicKey.containsKey(publicKey)) {
+          byPublicKey.put(publicKey, securityKeyData);
+        }
+      }
+      this.keys = keys;
+      this.byKeyHandle = ImmutableMap.copyOf(byKeyHandle);
+      this.byPublicKey = ImmutableMap.copyOf(byPublicKey);
+    }
+
+    AccountKeys plus(SecurityKeyData securityKeyData) {
+      return new AccountKeys(ImmutableList.<SecurityKeyData>builder()
+          .addAll(keys)
+          .add(securityKeyData)
+          .build());
+    }
+
+    AccountKeys minus(SecurityKeyData securityKeyData) {
+      List<SecurityKeyData> remaining = Lists.newArrayList(keys);
+      remaining.remove(securityKeyData);
+      return new AccountKeys(ImmutableList.copyOf(remaining));
+    }
+  }
+
+  private final Set<X509Certificate> trustedCertificateDataBase = Sets.newConcurrentHashSet();
+  private final SessionStore sessionStore;
+  private final ConcurrentMap<String, AccountKeys> securityKeyDataBase =
+      new ConcurrentHashMap<String, AccountKeys>();
+  private final Striped<Lock> accountLocks;
 
   public MemoryDataStore(SessionIdGenerator sessionIdGenerator) {
-	  this.sessionIdGenerator = sessionIdGenerator;
+    this(sessionIdGenerator, DEFAULT_LOCK_STRIPES);
+  }
+
+  public MemoryDataStore(SessionIdGenerator sessionIdGenerator, int lockStripes) {
+    this(sessionIdGenerator, lockStripes, DEFAULT_SESSION_TTL_SECONDS, TimeUnit.SECONDS,
+        Ticker.systemTicker());
+  }
+
+  public MemoryDataStore(SessionIdGenerator sessionIdGenerator, int lockStripes,
+      long sessionTtl, TimeUnit unit, Ticker ticker) {
+    this(new MemorySessionStore(sessionIdGenerator, sessionTtl, unit, ticker), lockStripes);
+  }
+
+  public MemoryDataStore(SessionStore sessionStore, int lockStripes) {
+    this.sessionStore = sessionStore;
+    this.accountLocks = Striped.lock(lockStripes);
   }
 
   @Override
   public String storeSessionData(EnrollSessionData sessionData) {
-	String sessionId = sessionIdGenerator.generateSessionId(sessionData.getAccountName());
-    sessionDataBase.put(sessionId, sessionData);
-    return sessionId;
+    return sessionStore.storeSessionData(sessionData);
   }
 
   @Override
   public EnrollSessionData getEnrollSessionData(String sessionId) {
-    return sessionDataBase.get(sessionId);
+    return sessionStore.getSessionData(sessionId);
   }
 
   @Override
   public SignSessionData getSignSessionData(String sessionId) {
-    return (SignSessionData) sessionDataBase.get(sessionId);
+    return (SignSessionData) getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData consumeEnrollSessionData(String sessionId) {
+    return sessionStore.consumeSessionData(sessionId);
+  }
+
+  @Override
+  public SignSessionData consumeSignSessionData(String sessionId) {
+    return (SignSessionData) consumeEnrollSessionData(sessionId);
+  }
+
+  /** The number of sessions that were neither consumed nor reclaimed yet. */
+  public int getSessionCount() {
+    return sessionStore.size();
   }
 
   @Override
   public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    tokens.add(securityKeyData);
-    securityKeyDataBase.put(accountName, tokens);
+    Lock lock = accountLocks.get(accountName);
+    lock.lock();
+    try {
+      securityKeyDataBase.put(accountName, getAccountKeys(accountName).plus(securityKeyData));
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public List<SecurityKeyData> getSecurityKeyData(String accountName) {
-    return Objects.firstNonNull(
-        securityKeyDataBase.get(accountName),
-        Lists.<SecurityKeyData>newArrayList());
+    return getAccountKeys(accountName).keys;
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyDataByKeyHandle(String accountName, byte[] keyHandle) {
+    return getAccountKeys(accountName).byKeyHandle.get(ByteBuffer.wrap(keyHandle));
   }
 
   @Override
@@ -75,24 +180,76 @@ public class MemoryDataStore implements DataStore {
 
   @Override
   public void removeSecuityKey(String accountName, byte[] publicKey) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    for (SecurityKeyData token : tokens) {
-      if (Arrays.equals(token.getPublicKey(), publicKey)) {
-        tokens.remove(token);
-        break;
+    Lock lock = accountLocks.get(accountName);
+    lock.lock();
+    try {
+      AccountKeys accountKeys = getAccountKeys(accountName);
+      SecurityKeyData token = accountKeys.byPublicKey.get(ByteBuffer.wrap(publicKey));
+      if (token != null) {
+        securityKeyDataBase.put(accountName, accountKeys.minus(token));
       }
+    } finally {
+      lock.unlock();
     }
   }
 
+  @Deprecated
   @Override
   public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
       int newCounterValue) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    for (SecurityKeyData token : tokens) {
-      if (Arrays.equals(token.getPublicKey(), publicKey)) {
-        token.setCounter(newCounterValue);
-        break;
+    SecurityKeyData token =
+        getAccountKeys(accountName).byPublicKey.get(ByteBuffer.wrap(publicKey));
+    if (token != null) {
+      token.setCounter(newCounterValue);
+    }
+  }
+
+  @Override
+  public boolean advanceCounterIfGreater(String accountName, byte[] keyHandle,
+      int newCounterValue) {
+    SecurityKeyData token = getSecurityKeyDataByKeyHandle(accountName, keyHandle);
+    return token != null && token.advanceCounterIfGreater(newCounterValue);
+  }
+
+  @Override
+  public Map<String, SignSessionData> consumeSignSessionData(Collection<String> sessionIds) {
+    Map<String, SignSessionData> result = Maps.newHashMap();
+    for (String sessionId : sessionIds) {
+      SignSessionData sessionData = consumeSignSessionData(sessionId);
+      if (sessionData != null) {
+        result.put(sessionId, sessionData);
       }
     }
+    return result;
+  }
+
+  @Override
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames) {
+    Map<String, List<SecurityKeyData>> result = Maps.newHashMap();
+    for (String accountName : accountNames) {
+      result.put(accountName, getSecurityKeyData(accountName));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean[] advanceCountersIfGreater(List<CounterUpdate> counterUpdates) {
+    boolean[] result = new boolean[counterUpdates.size()];
+    for (int i = 0; i < result.length; i++) {
+      CounterUpdate counterUpdate = counterUpdates.get(i);
+      result[i] = advanceCounterIfGreater(counterUpdate.getAccountName(),
+          counterUpdate.getKeyHandle(), counterUpdate.getNewCounterValue());
+    }
+    return result;
+  }
+
+  /** The accounts that have, or had, security keys. A live view. */
+  Set<String> getAccountNames() {
+    return securityKeyDataBase.keySet();
+  }
+
+  private AccountKeys getAccountKeys(String accountName) {
+    AccountKeys accountKeys = securityKeyDataBase.get(accountName);
+    return (accountKeys == null) ? AccountKeys.EMPTY : accountKeys;
   }
 }
@@ -0,0 +1,105 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.EnrollSessionData;
+
+/**
+ * Keeps sessions on the heap, in a concurrent map.
+ *
+ * <p>Expired sessions are swept by a {@link TimingWheel} that advances as sessions are stored
+ * and consumed, so no background thread is needed.
+ */
+public class MemorySessionStore implements SessionStore {
+  public static final long DEFAULT_SESSION_TTL_SECONDS = 600;
+
+  // one second ticks, 64 slots per level: the three levels span about three days
+  private static final int SESSION_WHEEL_SLOT_BITS = 6;
+  private static final int SESSION_WHEEL_LEVELS = 3;
+
+  private static class StoredSession {
+    final String sessionId;
+    final EnrollSessionData sessionData;
+    final long expiresAtNanos;
+
+    StoredSession(String sessionId, EnrollSessionData sessionData, long expiresAtNanos) {
+      this.sessionId = sessionId;
+      this.sessionData = sessionData;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  private final ConcurrentMap<String, StoredSession> sessionDataBase =
+      new ConcurrentHashMap<String, StoredSession>();
+  private final TimingWheel<StoredSession> sessionExpiry;
+  private final SessionIdGenerator sessionIdGenerator;
+  private final Ticker ticker;
+  private final long sessionTtlNanos;
+
+  public MemorySessionStore(SessionIdGenerator sessionIdGenerator) {
+    this(sessionIdGenerator, DEFAULT_SESSION_TTL_SECONDS, TimeUnit.SECONDS,
+        Ticker.systemTicker());
+  }
+
+  public MemorySessionStore(SessionIdGenerator sessionIdGenerator, long sessionTtl,
+      TimeUnit unit, Ticker ticker) {
+    this.sessionIdGenerator = sessionIdGenerator;
+    this.ticker = ticker;
+    this.sessionTtlNanos = unit.toNanos(sessionTtl);
+    this.sessionExpiry = new TimingWheel<StoredSession>(ticker, 1, TimeUnit.SECONDS,
+        SESSION_WHEEL_SLOT_BITS, SESSION_WHEEL_LEVELS,
+        new TimingWheel.Listener<StoredSession>() {
+          @Override
+          public void expired(StoredSession session) {
+            // a no-op if the session was consumed already
+            sessionDataBase.remove(session.sessionId, session);
+          }
+        });
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    String sessionId = sessionIdGenerator.generateSessionId(sessionData.getAccountName());
+    StoredSession session =
+        new StoredSession(sessionId, sessionData, ticker.read() + sessionTtlNanos);
+    sessionDataBase.put(sessionId, session);
+    sessionExpiry.schedule(session, sessionTtlNanos, TimeUnit.NANOSECONDS);
+    sessionExpiry.advance();
+    return sessionId;
+  }
+
+  @Override
+  public EnrollSessionData getSessionData(String sessionId) {
+    return unlessExpired(sessionDataBase.get(sessionId));
+  }
+
+  @Override
+  public EnrollSessionData consumeSessionData(String sessionId) {
+    sessionExpiry.advance();
+    return unlessExpired(sessionDataBase.remove(sessionId));
+  }
+
+  @Override
+  public int size() {
+    return sessionDataBase.size();
+  }
+
+  /** The session's data, or null if it is missing or expired but not swept yet. */
+  private EnrollSessionData unlessExpired(StoredSession session) {
+    if (session == null || ticker.read() - session.expiresAtNanos >= 0) {
+      return null;
+    }
+    return session.sessionData;
+  }
+}
@@ -0,0 +1,485 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * Keeps sessions outside the Java heap, so that millions of pending sessions do not lengthen
+ * garbage collection pauses.
+ *
+ * <p>Sessions are fixed-size records in direct {@link ByteBuffer} slabs. Public keys and key
+ * handles that do not fit into a record continue in further records. Account names and appIds
+ * are interned, and records reference them by id. Freed records are reused before new slabs are
+ * allocated.
+ *
+ * <p>The store is split into shards, each with its own lock, slabs and interned strings. A
+ * session id is 128 bits: the record's shard and slot, the record's generation, which changes
+ * every time the record is freed, and 64 random bits. It is encoded as URL-safe base64.
+ *
+ * <p>Each store also examines a few records for expired sessions, so expired sessions are
+ * reclaimed incrementally without a background thread.
+ */
+public class OffHeapSessionStore implements SessionStore {
+  public static final int DEFAULT_SHARDS = 16;
+  public static final int DEFAULT_RECORDS_PER_SLAB = 4096;
+  public static final int MAX_CHALLENGE_LENGTH = 32;
+
+  private static final int RECORD_SIZE = 192;
+  private static final int SWEEP_STEP = 8;
+  private static final int MAX_SLOTS_PER_SHARD = 1 << 24;
+
+  // record layout
+  private static final int GENERATION = 0;
+  private static final int KIND = 4;
+  private static final int CHALLENGE_LENGTH = 5;
+  private static final int PAYLOAD_LENGTH = 6;
+  private static final int NEXT = 8;
+  private static final int ACCOUNT_ID = 12;
+  private static final int APP_ID = 16;
+  private static final int SECRET = 20;
+  private static final int CREATION_TIME = 28;
+  private static final int EXPIRES_AT = 36;
+  private static final int CHALLENGE = 44;
+  private static final int PAYLOAD = CHALLENGE + MAX_CHALLENGE_LENGTH;
+  // continuation records only have a kind and a next record before their payload
+  private static final int CONTINUATION_PAYLOAD = 12;
+
+  private static final byte FREE = 0;
+  private static final byte ENROLL = 1;
+  // the payload is a public key
+  private static final byte SIGN_PUBLIC_KEY = 2;
+  // the payload is a sequence of key handles, each preceded by its length
+  private static final byte SIGN_KEY_HANDLES = 3;
+  private static final byte CONTINUATION = 4;
+
+  private static final int NONE = -1;
+
+  /** A growable stack of ints. */
+  private static class IntStack {
+    private int[] values = new int[16];
+    private int size;
+
+    void push(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int pop() {
+      return values[--size];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  /** Reference-counted interned strings, addressed by int ids. */
+  private static class StringTable {
+    private final Map<String, Integer> ids = Maps.newHashMap();
+    private final List<String> strings = Lists.newArrayList();
+    private int[] references = new int[16];
+    private final IntStack freeIds = new IntStack();
+
+    int acquire(String string) {
+      if (string == null) {
+        return NONE;
+      }
+      Integer id = ids.get(string);
+      if (id == null) {
+        if (freeIds.isEmpty()) {
+          id = strings.size();
+          strings.add(string);
+          if (id == references.length) {
+            references = Arrays.copyOf(references, id * 2);
+          }
+        } else {
+          id = freeIds.pop();
+          strings.set(id, string);
+        }
+        ids.put(string, id);
+      }
+      references[id]++;
+      return id;
+    }
+
+    String get(int id) {
+      return (id == NONE) ? null : strings.get(id);
+    }
+
+    void release(int id) {
+      if (id != NONE && --references[id] == 0) {
+        ids.remove(strings.set(id, null));
+        freeIds.push(id);
+      }
+    }
+  }
+
+  private class Shard {
+    final int index;
+    final List<ByteBuffer> slabs = Lists.newArrayList();
+    final IntStack freeSlots = new IntStack();
+    final StringTable strings = new StringTable();
+    int sweepCursor;
+    int sessions;
+
+    Shard(int index) {
+      this.index = index;
+    }
+
+    ByteBuffer slab(int slot) {
+      return slabs.get(slot / recordsPerSlab);
+    }
+
+    int offset(int slot) {
+      return (slot % recordsPerSlab) * RECORD_SIZE;
+    }
+
+    int capacity() {
+      return slabs.size() * recordsPerSlab;
+    }
+
+    /**
+     * Makes sure that {@code records} slots are free, so that a session can be written without
+     * failing halfway. If the shard cannot grow, all its expired sessions are freed first.
+     */
+    void reserve(int records, long now) {
+      while (freeSlots.size() < records) {
+        int firstSlot = capacity();
+        if (firstSlot + recordsPerSlab > maxSlotsPerShard) {
+          sweepAll(now);
+          if (freeSlots.size() < records) {
+            throw new IllegalStateException("session store is full");
+          }
+          return;
+        }
+        slabs.add(ByteBuffer.allocateDirect(recordsPerSlab * RECORD_SIZE));
+        // push in reverse, so that slots are handed out in ascending order
+        for (int slot = firstSlot + recordsPerSlab - 1; slot >= firstSlot; slot--) {
+          freeSlots.push(slot);
+        }
+      }
+    }
+
+    /** Returns a slot set aside by {@link #reserve}. */
+    int allocate() {
+      return freeSlots.pop();
+    }
+
+    /** Frees the session starting at {@code slot}, and the records it continues in. */
+    void free(int slot) {
+      ByteBuffer slab = slab(slot);
+      int offset = offset(slot);
+      strings.release(slab.getInt(offset + ACCOUNT_ID));
+      strings.release(slab.getInt(offset + APP_ID));
+      sessions--;
+      while (slot != NONE) {
+        slab = slab(slot);
+        offset = offset(slot);
+        int next = slab.getInt(offset + NEXT);
+        slab.putInt(offset + GENERATION, slab.getInt(offset + GENERATION) + 1);
+        slab.put(offset + KIND, FREE);
+        freeSlots.push(slot);
+        slot = next;
+      }
+    }
+
+    /** Frees the expired sessions among the next few records. */
+    void sweep(long now) {
+      sweep(now, Math.min(SWEEP_STEP, capacity()));
+    }
+
+    /** Frees all expired sessions. */
+    void sweepAll(long now) {
+      sweep(now, capacity());
+    }
+
+    private void sweep(long now, int records) {
+      int capacity = capacity();
+      for (int i = 0; i < records; i++) {
+        int slot = sweepCursor;
+        sweepCursor = (sweepCursor + 1) % capacity;
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        byte kind = slab.get(offset + KIND);
+        if (kind != FREE && kind != CONTINUATION
+            && now - slab.getLong(offset + EXPIRES_AT) >= 0) {
+          free(slot);
+        }
+      }
+    }
+  }
+
+  private final Shard[] shards;
+  private final int recordsPerSlab;
+  private final int maxSlotsPerShard;
+  private final long sessionTtlNanos;
+  private final Ticker ticker;
+  private final SecureRandom random = new SecureRandom();
+
+  public OffHeapSessionStore() {
+    this(DEFAULT_SHARDS, DEFAULT_RECORDS_PER_SLAB, MemorySessionStore.DEFAULT_SESSION_TTL_SECONDS,
+        TimeUnit.SECONDS, Ticker.systemTicker());
+  }
+
+  public OffHeapSessionStore(int shards, int recordsPerSlab, long sessionTtl, TimeUnit unit,
+      Ticker ticker) {
+    this(shards, recordsPerSlab, MAX_SLOTS_PER_SHARD / Math.max(recordsPerSlab, 1), sessionTtl, unit, ticker);
+  }
+
+  public OffHeapSessionStore(int shards, int recordsPerSlab, int maxSlabsPerShard,
+      long sessionTtl, TimeUnit unit, Ticker ticker) {
+    if (shards < 1 || shards > 128 || recordsPerSlab < 1 || maxSlabsPerShard < 1
+        || (long) recordsPerSlab * maxSlabsPerShard > MAX_SLOTS_PER_SHARD) {
+      throw new IllegalArgumentException("unsupported store size");
+    }
+    this.shards = new Shard[shards];
+    for (int i = 0; i < shards; i++) {
+      this.shards[i] = new Shard(i);
+    }
+    this.recordsPerSlab = recordsPerSlab;
+    this.maxSlotsPerShard = recordsPerSlab * maxSlabsPerShard;
+    this.sessionTtlNanos = unit.toNanos(sessionTtl);
+    this.ticker = ticker;
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    byte[] challenge = sessionData.getChallenge();
+    if (challenge.length > MAX_CHALLENGE_LENGTH) {
+      throw new IllegalArgumentException("challenge too long: " + challenge.length);
+    }
+    byte kind;
+    byte[] payload;
+    if (!(sessionData instanceof SignSessionData)) {
+      kind = ENROLL;
+      payload = new byte[0];
+    } else if (((SignSessionData) sessionData).getKeyHandles() == null) {
+      kind = SIGN_PUBLIC_KEY;
+      payload = Objects.firstNonNull(((SignSessionData) sessionData).getPublicKey(), new byte[0]);
+    } else {
+      kind = SIGN_KEY_HANDLES;
+      payload = encodeKeyHandles(((SignSessionData) sessionData).getKeyHandles());
+    }
+    if (payload.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("session too large");
+    }
+
+    long secret = random.nextLong();
+    Shard shard = shardFor(sessionData.getAccountName());
+    synchronized (shard) {
+      long now = ticker.read();
+      shard.sweep(now);
+      // nothing is written before all records of the session are set aside
+      shard.reserve(recordCount(payload.length), now);
+
+      int slot = shard.allocate();
+      ByteBuffer slab = shard.slab(slot);
+      int offset = shard.offset(slot);
+      int generation = slab.getInt(offset + GENERATION);
+      slab.put(offset + KIND, kind);
+      slab.put(offset + CHALLENGE_LENGTH, (byte) challenge.length);
+      slab.putShort(offset + PAYLOAD_LENGTH, (short) payload.length);
+      slab.putInt(offset + ACCOUNT_ID, shard.strings.acquire(sessionData.getAccountName()));
+      slab.putInt(offset + APP_ID, shard.strings.acquire(sessionData.getAppId()));
+      slab.putLong(offset + SECRET, secret);
+      slab.putLong(offset + CREATION_TIME, sessionData.getCreationTime());
+      slab.putLong(offset + EXPIRES_AT, now + sessionTtlNanos);
+      put(slab, offset + CHALLENGE, challenge, 0, challenge.length);
+      writePayload(shard, slot, payload);
+      shard.sessions++;
+
+      ByteBuffer sessionId = ByteBuffer.allocate(16);
+      sessionId.putInt((shard.index << 24) | slot);
+      sessionId.putInt(generation);
+      sessionId.putLong(secret);
+      return Base64.encodeBase64URLSafeString(sessionId.array());
+    }
+  }
+
+  @Override
+  public EnrollSessionData getSessionData(String sessionId) {
+    return readSessionData(sessionId, false /* consume */);
+  }
+
+  @Override
+  public EnrollSessionData consumeSessionData(String sessionId) {
+    return readSessionData(sessionId, true /* consume */);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        size += shard.sessions;
+      }
+    }
+    return size;
+  }
+
+  private EnrollSessionData readSessionData(String sessionId, boolean consume) {
+    byte[] decoded = Base64.decodeBase64(sessionId);
+    if (decoded.length != 16) {
+      return null;
+    }
+    ByteBuffer sessionIdBuffer = ByteBuffer.wrap(decoded);
+    int address = sessionIdBuffer.getInt();
+    int generation = sessionIdBuffer.getInt();
+    long secret = sessionIdBuffer.getLong();
+    int shardIndex = address >>> 24;
+    int slot = address & (MAX_SLOTS_PER_SHARD - 1);
+    if (shardIndex >= shards.length) {
+      return null;
+    }
+
+    Shard shard = shards[shardIndex];
+    synchronized (shard) {
+      if (slot >= shard.capacity()) {
+        return null;
+      }
+      ByteBuffer slab = shard.slab(slot);
+      int offset = shard.offset(slot);
+      byte kind = slab.get(offset + KIND);
+      if (kind == FREE || kind == CONTINUATION
+          || slab.getInt(offset + GENERATION) != generation
+          || slab.getLong(offset + SECRET) != secret) {
+        return null;
+      }
+      if (ticker.read() - slab.getLong(offset + EXPIRES_AT) >= 0) {
+        shard.free(slot);
+        return null;
+      }
+
+      String accountName = shard.strings.get(slab.getInt(offset + ACCOUNT_ID));
+      String appId = shard.strings.get(slab.getInt(offset + APP_ID));
+      long creationTime = slab.getLong(offset + CREATION_TIME);
+      byte[] challenge = new byte[slab.get(offset + CHALLENGE_LENGTH)];
+      get(slab, offset + CHALLENGE, challenge, 0, challenge.length);
+      byte[] payload = readPayload(shard, slot);
+      if (consume) {
+        shard.free(slot);
+      }
+
+      switch (kind) {
+        case ENROLL:
+          return new EnrollSessionData(accountName, appId, challenge, creationTime);
+        case SIGN_PUBLIC_KEY:
+          return new SignSessionData(accountName, appId, challenge, payload, creationTime);
+        default:
+          return new SignSessionData(accountName, appId, challenge, decodeKeyHandles(payload),
+              creationTime);
+      }
+    }
+  }
+
+  private Shard shardFor(String accountName) {
+    // sessions of one account share a shard, and so its interned account name
+    int hash = (accountName == null) ? 0 : accountName.hashCode();
+    return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /** Returns the number of records a session with a payload of {@code length} bytes takes. */
+  private static int recordCount(int length) {
+    int continued = Math.max(0, length - (RECORD_SIZE - PAYLOAD));
+    int continuationSize = RECORD_SIZE - CONTINUATION_PAYLOAD;
+    return 1 + (continued + continuationSize - 1) / continuationSize;
+  }
+
+  /** Writes the payload into the record at {@code slot}, chaining further records as needed. */
+  private static void writePayload(Shard shard, int slot, byte[] payload) {
+    ByteBuffer slab = shard.slab(slot);
+    int offset = shard.offset(slot);
+    int length = Math.min(payload.length, RECORD_SIZE - PAYLOAD);
+    put(slab, offset + PAYLOAD, payload, 0, length);
+    for (int written = length; written < payload.length; written += length) {
+      int next = shard.allocate();
+      slab.putInt(offset + NEXT, next);
+      slab = shard.slab(next);
+      offset = shard.offset(next);
+      slab.put(offset + KIND, CONTINUATION);
+      length = Math.min(payload.length - written, RECORD_SIZE - CONTINUATION_PAYLOAD);
+      put(slab, offset + CONTINUATION_PAYLOAD, payload, written, length);
+    }
+    slab.putInt(offset + NEXT, NONE);
+  }
+
+  private static byte[] readPayload(Shard shard, int slot) {
+    ByteBuffer slab = shard.slab(slot);
+    int offset = shard.offset(slot);
+    byte[] payload = new byte[slab.getShort(offset + PAYLOAD_LENGTH)];
+    int length = Math.min(payload.length, RECORD_SIZE - PAYLOAD);
+    get(slab, offset + PAYLOAD, payload, 0, length);
+    for (int read = length; read < payload.length; read += length) {
+      int next = slab.getInt(offset + NEXT);
+      slab = shard.slab(next);
+      offset = shard.offset(next);
+      length = Math.min(payload.length - read, RECORD_SIZE - CONTINUATION_PAYLOAD);
+      get(slab, offset + CONTINUATION_PAYLOAD, payload, read, length);
+    }
+    return payload;
+  }
+
+  private static byte[] encodeKeyHandles(List<byte[]> keyHandles) {
+    int length = 0;
+    for (byte[] keyHandle : keyHandles) {
+      if (keyHandle.length > 255) {
+        throw new IllegalArgumentException("key handle too long: " + keyHandle.length);
+      }
+      length += 1 + keyHandle.length;
+    }
+    ByteBuffer encoded = ByteBuffer.allocate(length);
+    for (byte[] keyHandle : keyHandles) {
+      encoded.put((byte) keyHandle.length);
+      encoded.put(keyHandle);
+    }
+    return encoded.array();
+  }
+
+  private static List<byte[]> decodeKeyHandles(byte[] encoded) {
+    List<byte[]> keyHandles = Lists.newArrayList();
+    for (int i = 0; i < encoded.length; ) {
+      int length = encoded[i++] & 0xFF;
+      keyHandles.add(Arrays.copyOfRange(encoded, i, i + length));
+      i += length;
+    }
+    return keyHandles;
+  }
+
+  private static void put(ByteBuffer slab, int index, byte[] src, int srcOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      slab.put(index + i, src[srcOffset + i]);
+    }
+  }
+
+  private static void get(ByteBuffer slab, int index, byte[] dst, int dstOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      dst[dstOffset + i] = slab.get(index + i);
+    }
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.u2f.U2FException;
+
+/**
+ * Matches the origins found in client data against the origins a server accepts.
+ *
+ * <p>Rules are origins such as {@code https://example.com}, or wildcard rules such as
+ * {@code https://*.example.com} that accept any subdomain of {@code example.com}, but not
+ * {@code example.com} itself. Only the scheme and authority of rules and of matched origins are
+ * considered, and they are compared case-insensitively. Rules can be global, or only apply to
+ * sessions of a given appId.
+ *
+ * <p>Rules are compiled into hash tables when the matcher is built. Matching reads the scheme
+ * and authority straight from the origin string and does not allocate.
+ */
+public class OriginMatcher {
+  private static final Logger Log = Logger.getLogger(OriginMatcher.class.getName());
+
+  private static final String SCHEME_SEPARATOR = "://";
+  private static final String WILDCARD_PREFIX = "*.";
+
+  /**
+   * Open addressing hash set of "scheme://authority" keys, which can be looked up by two regions
+   * of a string: a "scheme://" prefix and the rest of the key.
+   */
+  private static class OriginTable {
+    private final String[] keys;
+    private final int[] hashes;
+    private final int mask;
+
+    OriginTable(Collection<String> keys) {
+      int capacity = Integer.highestOneBit(Math.max(keys.size(), 1) * 4 - 1) << 1;
+      this.keys = new String[capacity];
+      this.hashes = new int[capacity];
+      this.mask = capacity - 1;
+      for (String key : keys) {
+        int hash = hash(key, key.length(), key.length(), key.length());
+        int slot = hash & mask;
+        while (this.keys[slot] != null) {
+          if (this.keys[slot].equals(key)) {
+            break;
+          }
+          slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.hashes[slot] = hash;
+      }
+    }
+
+    /**
+     * Whether the table contains {@code s[0, prefixEnd)} followed by
+     * {@code s[suffixStart, suffixEnd)}.
+     */
+    boolean contains(String s, int prefixEnd, int suffixStart, int suffixEnd) {
+      int hash = hash(s, prefixEnd, suffixStart, suffixEnd);
+      int length = prefixEnd + suffixEnd - suffixStart;
+      for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+        String key = keys[slot];
+        if (hashes[slot] == hash
+            && key.length() == length
+            && key.regionMatches(true, 0, s, 0, prefixEnd)
+            && key.regionMatches(true, prefixEnd, s, suffixStart, suffixEnd - suffixStart)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static int hash(String s, int prefixEnd, int suffixStart, int suffixEnd) {
+      int hash = 0;
+      for (int i = 0; i < prefixEnd; i++) {
+        hash = 31 * hash + toLowerCase(s.charAt(i));
+      }
+      for (int i = suffixStart; i < suffixEnd; i++) {
+        hash = 31 * hash + toLowerCase(s.charAt(i));
+      }
+      // spread the low bits, which pick the slot
+      return hash ^ (hash >>> 16);
+    }
+
+    private static char toLowerCase(char c) {
+      return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+  }
+
+  /** The exact and wildcard rules of one scope. */
+  private static class Rules {
+    final OriginTable origins;
+    // keys are "scheme://.domain", the rule's origin without its '*'
+    final OriginTable wildcardSuffixes;
+    final List<String> description;
+
+    Rules(Set<String> rules) {
+      List<String> origins = Lists.newArrayList();
+      List<String> wildcardSuffixes = Lists.newArrayList();
+      ImmutableList.Builder<String> description = ImmutableList.builder();
+      for (String rule : rules) {
+        String origin;
+        try {
+          origin = canonicalizeOrigin(rule);
+        } catch (IllegalArgumentException e) {
+          Log.warning("ignoring origin rule without scheme or authority: " + rule);
+          continue;
+        }
+        int authorityStart = origin.indexOf(SCHEME_SEPARATOR) + SCHEME_SEPARATOR.length();
+        if (origin.startsWith(WILDCARD_PREFIX, authorityStart)) {
+          wildcardSuffixes.add(origin.substring(0, authorityStart)
+              + origin.substring(authorityStart + 1));
+        } else {
+          origins.add(origin);
+        }
+        description.add(origin);
+      }
+      this.origins = new OriginTable(origins);
+      this.wildcardSuffixes = new OriginTable(wildcardSuffixes);
+      this.description = description.build();
+    }
+
+    boolean matches(String origin, int authorityStart, int authorityEnd) {
+      if (origins.contains(origin, authorityEnd, authorityEnd, authorityEnd)) {
+        return true;
+      }
+      // try every proper domain suffix of the host: a.b.example.com -> .b.example.com, ...
+      for (int dot = origin.indexOf('.', authorityStart + 1);
+          dot >= 0 && dot < authorityEnd;
+          dot = origin.indexOf('.', dot + 1)) {
+        if (wildcardSuffixes.contains(origin, authorityStart, dot, authorityEnd)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final Rules globalRules;
+  private final ImmutableMap<String, Rules> appIdRules;
+
+  /** Builds a matcher accepting {@code origins} for all appIds. */
+  public OriginMatcher(Set<String> origins) {
+    this(origins, ImmutableMap.<String, Set<String>>of());
+  }
+
+  /**
+   * Builds a matcher accepting {@code origins} for all appIds, and additionally the origins in
+   * {@code originsByAppId} for sessions of the corresponding appId. Rules that are not origins
+   * are logged and ignored.
+   */
+  public OriginMatcher(Set<String> origins, Map<String, ? extends Set<String>> originsByAppId) {
+    this.globalRules = new Rules(origins);
+    ImmutableMap.Builder<String, Rules> appIdRules = ImmutableMap.builder();
+    for (Map.Entry<String, ? extends Set<String>> entry : originsByAppId.entrySet()) {
+      appIdRules.put(entry.getKey(), new Rules(entry.getValue()));
+    }
+    this.appIdRules = appIdRules.build();
+  }
+
+  /**
+   * Whether {@code origin} is accepted for a session of {@code appId}.
+   *
+   * @throws U2FException if {@code origin} is malformed
+   */
+  public boolean matches(String appId, String origin) throws U2FException {
+    int schemeEnd = origin.indexOf(SCHEME_SEPARATOR);
+    int authorityStart = schemeEnd + SCHEME_SEPARATOR.length();
+    int authorityEnd = findAuthorityEnd(origin, authorityStart);
+    if (schemeEnd <= 0 || authorityEnd == authorityStart
+        || origin.lastIndexOf('@', authorityEnd - 1) >= authorityStart) {
+      throw new U2FException("malformed origin " + origin);
+    }
+
+    if (globalRules.matches(origin, authorityStart, authorityEnd)) {
+      return true;
+    }
+    Rules rules = (appId == null) ? null : appIdRules.get(appId);
+    return rules != null && rules.matches(origin, authorityStart, authorityEnd);
+  }
+
+  /**
+   * Returns the lower-cased "scheme://authority" of {@code url}.
+   *
+   * @throws IllegalArgumentException if {@code url} has no scheme or authority
+   */
+  static String canonicalizeOrigin(String url) {
+    int schemeEnd = url.indexOf(SCHEME_SEPARATOR);
+    int authorityStart = schemeEnd + SCHEME_SEPARATOR.length();
+    int authorityEnd = findAuthorityEnd(url, authorityStart);
+    if (schemeEnd <= 0 || authorityEnd == authorityStart) {
+      throw new IllegalArgumentException("specified bad origin " + url);
+    }
+    return url.substring(0, authorityEnd).toLowerCase(Locale.US);
+  }
+
+  private static int findAuthorityEnd(String url, int authorityStart) {
+    for (int i = Math.max(authorityStart, 0); i < url.length(); i++) {
+      char c = url.charAt(i);
+      if (c == '/' || c == '?' || c == '#') {
+        return i;
+      }
+    }
+    return url.length();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    Joiner.on(", ").appendTo(result, globalRules.description);
+    for (Map.Entry<String, Rules> entry : appIdRules.entrySet()) {
+      result.append("; for ").append(entry.getKey()).append(": ");
+      Joiner.on(", ").appendTo(result, entry.getValue().description);
+    }
+    return result.toString();
+  }
+}
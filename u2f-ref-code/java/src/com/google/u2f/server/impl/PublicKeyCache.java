@@ -0,0 +1,62 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded cache of decoded user public keys, keyed by their encoded (X9.62 uncompressed point)
+ * form. A user public key never changes after enrollment, so repeat sign-ins by the same key
+ * can skip point decoding and validation entirely.
+ */
+public class PublicKeyCache {
+  public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+  public static final long DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+  private final Cache<ByteBuffer, PublicKey> cache;
+
+  public PublicKeyCache() {
+    this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES);
+  }
+
+  public PublicKeyCache(long maximumSize, long expireAfterAccess, TimeUnit unit) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(expireAfterAccess, unit)
+        .recordStats()
+        .build();
+  }
+
+  /** Returns the cached key for the given encoding, or null on a miss. */
+  public PublicKey getIfPresent(byte[] encodedPublicKey) {
+    return cache.getIfPresent(ByteBuffer.wrap(encodedPublicKey));
+  }
+
+  public void put(byte[] encodedPublicKey, PublicKey publicKey) {
+    // copy the encoding, so that callers mutating their array can't corrupt the cache key
+    cache.put(ByteBuffer.wrap(encodedPublicKey.clone()), publicKey);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /** Hit, miss and eviction counts since this cache was created. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+}
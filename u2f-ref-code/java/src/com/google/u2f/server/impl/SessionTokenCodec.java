@@ -0,0 +1,240 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * Seals sessions into their session ids, so that a server can hand out sessions without storing
+ * them.
+ *
+ * <p>A token is a version byte, the id of the key it was sealed with, a random 12-byte nonce,
+ * and the session encrypted with AES-GCM under that key and nonce, authenticating the version
+ * and key id along with it. The session is laid out as a type byte, the creation time, and the
+ * length-prefixed challenge, app id and account name, followed by the public key or the key
+ * handles of a sign session. The whole token is encoded as web-safe base64.
+ *
+ * <p>Tokens are sealed with the current key, and opened with whichever key their id names, so
+ * keys can be rotated by adding a key, making it current, and dropping the old one once its
+ * tokens have expired. Each thread keeps one initialized cipher per key.
+ */
+public class SessionTokenCodec {
+  public static final int MAX_KEY_ID = 255;
+
+  private static final byte VERSION = 1;
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  // version, key id
+  private static final int AAD_LENGTH = 2;
+  private static final int HEADER_LENGTH = AAD_LENGTH + NONCE_LENGTH;
+
+  // session types
+  private static final byte ENROLL = 0;
+  private static final byte SIGN_PUBLIC_KEY = 1;
+  private static final byte SIGN_KEY_HANDLES = 2;
+
+  private final int currentKeyId;
+  // indexed by key id, null for unknown ids
+  private final KeyParameter[] keys = new KeyParameter[MAX_KEY_ID + 1];
+  private final SecureRandom random = new SecureRandom();
+  private final ThreadLocal<GCMBlockCipher[]> ciphers = new ThreadLocal<GCMBlockCipher[]>() {
+    @Override
+    protected GCMBlockCipher[] initialValue() {
+      return new GCMBlockCipher[MAX_KEY_ID + 1];
+    }
+  };
+
+  /**
+   * @param keys AES keys of 16, 24 or 32 bytes, by key id
+   * @param currentKeyId the id of the key new tokens are sealed with
+   */
+  public SessionTokenCodec(Map<Integer, byte[]> keys, int currentKeyId) {
+    for (Map.Entry<Integer, byte[]> key : keys.entrySet()) {
+      int keyId = key.getKey();
+      if (keyId < 0 || keyId > MAX_KEY_ID) {
+        throw new IllegalArgumentException("key id out of range: " + keyId);
+      }
+      int length = key.getValue().length;
+      if (length != 16 && length != 24 && length != 32) {
+        throw new IllegalArgumentException("not an AES key: " + keyId);
+      }
+      this.keys[keyId] = new KeyParameter(key.getValue().clone());
+    }
+    if (currentKeyId < 0 || currentKeyId > MAX_KEY_ID || this.keys[currentKeyId] == null) {
+      throw new IllegalArgumentException("no key with the current key id " + currentKeyId);
+    }
+    this.currentKeyId = currentKeyId;
+  }
+
+  /** Seals {@code sessionData} into a token. */
+  public String encode(EnrollSessionData sessionData) {
+    byte[] challenge = sessionData.getChallenge();
+    byte[] appId = sessionData.getAppId().getBytes(Charsets.UTF_8);
+    byte[] accountName = sessionData.getAccountName().getBytes(Charsets.UTF_8);
+    byte type = ENROLL;
+    byte[] publicKey = null;
+    List<byte[]> keyHandles = null;
+    int length = 1 + 8 + 1 + challenge.length + 2 + appId.length + 2 + accountName.length;
+    if (sessionData instanceof SignSessionData) {
+      SignSessionData signSessionData = (SignSessionData) sessionData;
+      publicKey = signSessionData.getPublicKey();
+      keyHandles = signSessionData.getKeyHandles();
+      if (keyHandles != null) {
+        type = SIGN_KEY_HANDLES;
+        length += 1;
+        for (byte[] keyHandle : keyHandles) {
+          length += 1 + keyHandle.length;
+        }
+      } else {
+        type = SIGN_PUBLIC_KEY;
+        length += 1 + publicKey.length;
+      }
+    }
+
+    byte[] token = new byte[HEADER_LENGTH + length + TAG_LENGTH];
+    ByteBuffer plaintext = ByteBuffer.wrap(token, HEADER_LENGTH, length);
+    plaintext.put(type);
+    plaintext.putLong(sessionData.getCreationTime());
+    putShortBytes(plaintext, challenge);
+    plaintext.putShort(checkedShort(appId.length)).put(appId);
+    plaintext.putShort(checkedShort(accountName.length)).put(accountName);
+    if (type == SIGN_PUBLIC_KEY) {
+      putShortBytes(plaintext, publicKey);
+    } else if (type == SIGN_KEY_HANDLES) {
+      plaintext.put(checkedByte(keyHandles.size()));
+      for (byte[] keyHandle : keyHandles) {
+        putShortBytes(plaintext, keyHandle);
+      }
+    }
+
+    token[0] = VERSION;
+    token[1] = (byte) currentKeyId;
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    System.arraycopy(nonce, 0, token, AAD_LENGTH, NONCE_LENGTH);
+    GCMBlockCipher cipher = getCipher(true, currentKeyId, nonce);
+    cipher.processAADBytes(token, 0, AAD_LENGTH);
+    // in place: the cipher never writes ahead of what it has read
+    int written = cipher.processBytes(token, HEADER_LENGTH, length, token, HEADER_LENGTH);
+    try {
+      cipher.doFinal(token, HEADER_LENGTH + written);
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException(e);
+    }
+    return Base64.encodeBase64URLSafeString(token);
+  }
+
+  /**
+   * Opens a token sealed by {@link #encode}. Returns null if the token is malformed, was sealed
+   * with an unknown key, or fails authentication.
+   */
+  public EnrollSessionData decode(String sessionId) {
+    byte[] token = Base64.decodeBase64(sessionId);
+    if (token.length < HEADER_LENGTH + TAG_LENGTH || token[0] != VERSION) {
+      return null;
+    }
+    int keyId = token[1] & 0xff;
+    if (keys[keyId] == null) {
+      return null;
+    }
+    byte[] nonce = new byte[NONCE_LENGTH];
+    System.arraycopy(token, AAD_LENGTH, nonce, 0, NONCE_LENGTH);
+    GCMBlockCipher cipher = getCipher(false, keyId, nonce);
+    cipher.processAADBytes(token, 0, AAD_LENGTH);
+    int length = cipher.processBytes(token, HEADER_LENGTH, token.length - HEADER_LENGTH,
+        token, HEADER_LENGTH);
+    try {
+      length += cipher.doFinal(token, HEADER_LENGTH + length);
+    } catch (InvalidCipherTextException e) {
+      return null;
+    }
+
+    // authentic, so the layout is one we wrote
+    ByteBuffer plaintext = ByteBuffer.wrap(token, HEADER_LENGTH, length);
+    byte type = plaintext.get();
+    long creationTime = plaintext.getLong();
+    byte[] challenge = getShortBytes(plaintext);
+    String appId = getString(plaintext);
+    String accountName = getString(plaintext);
+    switch (type) {
+      case ENROLL:
+        return new EnrollSessionData(accountName, appId, challenge, creationTime);
+      case SIGN_PUBLIC_KEY:
+        return new SignSessionData(accountName, appId, challenge, getShortBytes(plaintext),
+            creationTime);
+      case SIGN_KEY_HANDLES:
+        int count = plaintext.get() & 0xff;
+        List<byte[]> keyHandles = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+          keyHandles.add(getShortBytes(plaintext));
+        }
+        return new SignSessionData(accountName, appId, challenge, keyHandles, creationTime);
+      default:
+        throw new IllegalStateException("unknown session type " + type);
+    }
+  }
+
+  private GCMBlockCipher getCipher(boolean forEncryption, int keyId, byte[] nonce) {
+    GCMBlockCipher[] threadCiphers = ciphers.get();
+    GCMBlockCipher cipher = threadCiphers[keyId];
+    KeyParameter key = null;
+    if (cipher == null) {
+      cipher = new GCMBlockCipher(new AESFastEngine());
+      threadCiphers[keyId] = cipher;
+      key = keys[keyId];
+    }
+    // a null key reuses the key schedule and hash tables of the previous init
+    cipher.init(forEncryption, new AEADParameters(key, TAG_LENGTH * 8, nonce));
+    return cipher;
+  }
+
+  private static void putShortBytes(ByteBuffer buffer, byte[] data) {
+    buffer.put(checkedByte(data.length)).put(data);
+  }
+
+  private static byte[] getShortBytes(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.get() & 0xff];
+    buffer.get(data);
+    return data;
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xffff;
+    String value = new String(buffer.array(), buffer.position(), length, Charsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  private static byte checkedByte(int value) {
+    if (value > 0xff) {
+      throw new IllegalArgumentException("session field too long");
+    }
+    return (byte) value;
+  }
+
+  private static short checkedShort(int value) {
+    if (value > 0xffff) {
+      throw new IllegalArgumentException("session field too long");
+    }
+    return (short) value;
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+
+/**
+ * A {@link BouncyCastleCrypto} that keeps one signature engine, one message digest and one
+ * digest buffer per thread instead of looking them up in the provider list on every call. Engines are reset
+ * before they are handed out, so a call that failed halfway can't leak state into the next one.
+ */
+public class ThreadLocalBouncyCastleCrypto extends BouncyCastleCrypto {
+  private final ThreadLocal<Signature> signatureEngine = new ThreadLocal<Signature>();
+  private final ThreadLocal<MessageDigest> sha256Engine = new ThreadLocal<MessageDigest>();
+  private final ThreadLocal<byte[]> digestBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SHA256_LENGTH];
+    }
+  };
+
+  public ThreadLocalBouncyCastleCrypto() {
+    super();
+  }
+
+  public ThreadLocalBouncyCastleCrypto(PublicKeyCache publicKeyCache) {
+    super(publicKeyCache);
+  }
+
+  @Override
+  protected Signature getSignatureEngine() throws NoSuchAlgorithmException {
+    // Signature engines are reset by initVerify(), which every caller does before use.
+    Signature signature = signatureEngine.get();
+    if (signature == null) {
+      signature = super.getSignatureEngine();
+      signatureEngine.set(signature);
+    }
+    return signature;
+  }
+
+  @Override
+  protected MessageDigest getSha256Engine() throws NoSuchAlgorithmException {
+    MessageDigest digest = sha256Engine.get();
+    if (digest == null) {
+      digest = super.getSha256Engine();
+      sha256Engine.set(digest);
+    } else {
+      digest.reset();
+    }
+    return digest;
+  }
+
+  @Override
+  protected byte[] getDigestBuffer() {
+    return digestBuffer.get();
+  }
+}
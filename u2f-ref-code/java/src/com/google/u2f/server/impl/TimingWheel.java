@@ -0,0 +1,187 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+
+/**
+ * A hierarchical timing wheel, which hands values to a listener once their deadline has passed.
+ *
+ * <p>Level 0 has one slot per tick; each slot of level {@code n} spans all slots of level
+ * {@code n - 1}. A value sits in the lowest level whose span reaches its deadline, and moves down
+ * a level each time the wheel turns past its slot, so scheduling costs O(1) and each value is
+ * touched at most once per level. Deadlines beyond the top level wait in an overflow list.
+ *
+ * <p>{@link #schedule} never blocks. {@link #advance} processes the ticks that passed since it
+ * last ran; if another thread is already advancing the wheel, it returns immediately. Values are
+ * expired at tick granularity, so up to one tick late.
+ */
+class TimingWheel<T> {
+  /** Receives expired values, on the thread that advances the wheel. */
+  interface Listener<T> {
+    void expired(T value);
+  }
+
+  private static class Entry<T> {
+    final T value;
+    final long deadlineTick;
+
+    Entry(T value, long deadlineTick) {
+      this.value = value;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final Ticker ticker;
+  private final Listener<? super T> listener;
+  private final long tickNanos;
+  private final long startNanos;
+  private final int slotBits;
+  private final int slotMask;
+  // wheels[level][slot]
+  private final List<List<List<Entry<T>>>> wheels;
+  private final Queue<Entry<T>> pending = new ConcurrentLinkedQueue<Entry<T>>();
+  private final ReentrantLock advanceLock = new ReentrantLock();
+
+  // guarded by advanceLock
+  private List<Entry<T>> overflow = Lists.newArrayList();
+  private long currentTick;
+  private int size;
+
+  /**
+   * @param slotBits log2 of the number of slots per level
+   */
+  TimingWheel(Ticker ticker, long tickDuration, TimeUnit unit, int slotBits, int levels,
+      Listener<? super T> listener) {
+    if (slotBits < 1 || levels < 1 || slotBits * levels > 62) {
+      throw new IllegalArgumentException("unsupported wheel size");
+    }
+    this.ticker = ticker;
+    this.listener = listener;
+    this.tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+    this.startNanos = ticker.read();
+    this.slotBits = slotBits;
+    this.slotMask = (1 << slotBits) - 1;
+    this.wheels = Lists.newArrayListWithCapacity(levels);
+    for (int level = 0; level < levels; level++) {
+      List<List<Entry<T>>> slots = Lists.newArrayListWithCapacity(1 << slotBits);
+      for (int slot = 0; slot <= slotMask; slot++) {
+        slots.add(new ArrayList<Entry<T>>(0));
+      }
+      wheels.add(slots);
+    }
+  }
+
+  /** Schedules {@code value} to expire after {@code delay}. */
+  void schedule(T value, long delay, TimeUnit unit) {
+    long deadlineNanos = ticker.read() - startNanos + unit.toNanos(delay);
+    // round up, so that values never expire early
+    pending.add(new Entry<T>(value, (deadlineNanos + tickNanos - 1) / tickNanos));
+  }
+
+  /**
+   * Expires the values whose deadline has passed. Returns the number of values expired, or 0 if
+   * another thread is advancing the wheel.
+   */
+  int advance() {
+    if (!advanceLock.tryLock()) {
+      return 0;
+    }
+    try {
+      Entry<T> entry;
+      while ((entry = pending.poll()) != null) {
+        // the current tick has been processed already
+        place(entry, currentTick + 1);
+        size++;
+      }
+      long nowTick = (ticker.read() - startNanos) / tickNanos;
+      int expired = 0;
+      while (currentTick < nowTick) {
+        if (size == 0) {
+          // nothing to cascade or expire, skip ahead
+          currentTick = nowTick;
+          break;
+        }
+        currentTick++;
+        expired += tick();
+      }
+      return expired;
+    } finally {
+      advanceLock.unlock();
+    }
+  }
+
+  /** The number of scheduled values that have not expired yet. */
+  int size() {
+    advanceLock.lock();
+    try {
+      return size + pending.size();
+    } finally {
+      advanceLock.unlock();
+    }
+  }
+
+  private int tick() {
+    int levels = wheels.size();
+    if ((currentTick & ((1L << (slotBits * levels)) - 1)) == 0) {
+      List<Entry<T>> entries = overflow;
+      overflow = Lists.newArrayList();
+      for (Entry<T> entry : entries) {
+        place(entry, currentTick);
+      }
+    }
+    // cascade from the top, so that values can move down several levels in one tick
+    for (int level = levels - 1; level > 0; level--) {
+      if ((currentTick & ((1L << (slotBits * level)) - 1)) == 0) {
+        List<Entry<T>> slot = wheels.get(level).get(slotIndex(currentTick, level));
+        if (!slot.isEmpty()) {
+          List<Entry<T>> entries = new ArrayList<Entry<T>>(slot);
+          slot.clear();
+          for (Entry<T> entry : entries) {
+            place(entry, currentTick);
+          }
+        }
+      }
+    }
+    List<Entry<T>> slot = wheels.get(0).get(slotIndex(currentTick, 0));
+    int expired = slot.size();
+    for (Entry<T> entry : slot) {
+      listener.expired(entry.value);
+    }
+    slot.clear();
+    size -= expired;
+    return expired;
+  }
+
+  /**
+   * Puts {@code entry} in the lowest level whose span, starting now, covers its deadline. Past
+   * deadlines are moved to {@code minTick}, the earliest tick that is still to be processed.
+   */
+  private void place(Entry<T> entry, long minTick) {
+    long deadlineTick = Math.max(entry.deadlineTick, minTick);
+    for (int level = 0; level < wheels.size(); level++) {
+      int shift = slotBits * (level + 1);
+      if ((deadlineTick >>> shift) == (currentTick >>> shift)) {
+        wheels.get(level).get(slotIndex(deadlineTick, level)).add(entry);
+        return;
+      }
+    }
+    overflow.add(entry);
+  }
+
+  private int slotIndex(long tick, int level) {
+    return (int) (tick >>> (slotBits * level)) & slotMask;
+  }
+}
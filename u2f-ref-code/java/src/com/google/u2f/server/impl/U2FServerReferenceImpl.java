@@ -7,50 +7,58 @@
 package com.google.u2f.server.impl;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.DERBitString;
 import org.bouncycastle.asn1.DEROctetString;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.u2f.U2FConsts;
 import com.google.u2f.U2FException;
+import com.google.u2f.codec.ClientDataCodec;
+import com.google.u2f.codec.ClientDataScanner;
 import com.google.u2f.codec.RawMessageCodec;
 import com.google.u2f.key.UserPresenceVerifier;
 import com.google.u2f.key.messages.AuthenticateResponse;
 import com.google.u2f.key.messages.RegisterResponse;
+import com.google.u2f.server.BatchDataStore;
 import com.google.u2f.server.ChallengeGenerator;
 import com.google.u2f.server.Crypto;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.data.CounterUpdate;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SecurityKeyData.Transports;
+import com.google.u2f.server.data.SignResult;
 import com.google.u2f.server.data.SignSessionData;
 import com.google.u2f.server.messages.RegisteredKey;
 import com.google.u2f.server.messages.RegistrationRequest;
 import com.google.u2f.server.messages.RegistrationResponse;
 import com.google.u2f.server.messages.SignResponse;
 import com.google.u2f.server.messages.U2fSignRequest;
+import com.google.u2f.trace.Tracer;
 
 public class U2FServerReferenceImpl implements U2FServer {
 
@@ -60,10 +68,6 @@ public class U2FServerReferenceImpl implements U2FServer {
   // specific transport values
   private static final int BITS_IN_A_BYTE = 8;
 
-  private static final String TYPE_PARAM = "typ";
-  private static final String CHALLENGE_PARAM = "challenge";
-  private static final String ORIGIN_PARAM = "origin";
-
   // TODO: use these for channel id checks in verifyBrowserData
   @SuppressWarnings("unused")
   private static final String CHANNEL_ID_PARAM = "cid_pubkey";
@@ -71,23 +75,90 @@ public class U2FServerReferenceImpl implements U2FServer {
   private static final String UNUSED_CHANNEL_ID = "";
 
   private static final Logger Log = Logger.getLogger(U2FServerReferenceImpl.class.getName());
+  private static final Tracer Trace = Tracer.getTracer(U2FServerReferenceImpl.class);
 
   private final ChallengeGenerator challengeGenerator;
   private final DataStore dataStore;
   private final Crypto cryto;
-  private final Set<String> allowedOrigins;
+  private final OriginMatcher originMatcher;
+  private final AppIdRegistry appIdRegistry;
+  private final ExecutorService verificationExecutor;
+  private final AttestationCertificateCache attestationCertificates;
+  private final AttestationTrustStore attestationTrustStore;
 
+  /**
+   * Creates a server that accepts any appId. AppIds are hashed on first use and a bounded
+   * number of them is remembered.
+   */
   public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
       DataStore dataStore, Crypto cryto, Set<String> origins) {
+    this(challengeGenerator, dataStore, cryto, origins, new AppIdRegistry(cryto,
+        ImmutableSet.<String>of(), AppIdRegistry.DEFAULT_MAXIMUM_UNKNOWN_APP_IDS));
+  }
+
+  /**
+   * Creates a server that only accepts the given appIds, whose hashes are precomputed here.
+   */
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, Set<String> appIds) {
+    this(challengeGenerator, dataStore, cryto, origins, new AppIdRegistry(cryto, appIds));
+  }
+
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, AppIdRegistry appIdRegistry) {
+    this(challengeGenerator, dataStore, cryto, origins, appIdRegistry,
+        MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * @param verificationExecutor runs the signature checks of
+   *     {@link #processSignResponses(List)}; pass a multi-threaded executor to spread a batch
+   *     across cores
+   */
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, AppIdRegistry appIdRegistry,
+      ExecutorService verificationExecutor) {
+    this(challengeGenerator, dataStore, cryto, origins, appIdRegistry, verificationExecutor,
+        new AttestationCertificateCache());
+  }
+
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, AppIdRegistry appIdRegistry,
+      ExecutorService verificationExecutor,
+      AttestationCertificateCache attestationCertificates) {
+    this(challengeGenerator, dataStore, cryto, new OriginMatcher(origins), appIdRegistry,
+        verificationExecutor, attestationCertificates, new AttestationTrustStore(cryto,
+            dataStore, AttestationTrustStore.Policy.LOG));
+  }
+
+  /**
+   * @param originMatcher decides which origins are accepted in client data. Other constructors
+   *     accept the given origins for all appIds.
+   * @param attestationTrustStore decides which attestation certificates are trusted, and what
+   *     happens to registrations with untrusted ones. Other constructors build one that reads
+   *     the trusted certificates from {@code dataStore} and only logs untrusted certificates.
+   */
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, OriginMatcher originMatcher,
+      AppIdRegistry appIdRegistry, ExecutorService verificationExecutor,
+      AttestationCertificateCache attestationCertificates,
+      AttestationTrustStore attestationTrustStore) {
     this.challengeGenerator = challengeGenerator;
     this.dataStore = dataStore;
     this.cryto = cryto;
-    this.allowedOrigins = canonicalizeOrigins(origins);
+    this.originMatcher = originMatcher;
+    this.appIdRegistry = appIdRegistry;
+    this.verificationExecutor = verificationExecutor;
+    this.attestationCertificates = attestationCertificates;
+    this.attestationTrustStore = attestationTrustStore;
   }
 
   @Override
-  public RegistrationRequest getRegistrationRequest(String accountName, String appId) {
-    Log.info(">> getRegistrationRequest " + accountName);
+  public RegistrationRequest getRegistrationRequest(String accountName, String appId)
+      throws U2FException {
+    Trace.event(Level.FINE, accountName, ">> getRegistrationRequest");
+
+    appId = appIdRegistry.lookup(appId).getAppId();
 
     byte[] challenge = challengeGenerator.generateChallenge(accountName);
     EnrollSessionData sessionData = new EnrollSessionData(accountName, appId, challenge);
@@ -96,11 +167,10 @@ public class U2FServerReferenceImpl implements U2FServer {
 
     String challengeBase64 = Base64.encodeBase64URLSafeString(challenge);
 
-    Log.info("-- Output --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  challenge: " + Hex.encodeHexString(challenge));
+    Trace.field(Level.FINER, accountName, "sessionId", sessionId);
+    Trace.field(Level.FINER, accountName, "challenge", challenge);
 
-    Log.info("<< getRegistrationRequest " + accountName);
+    Trace.event(Level.FINE, accountName, "<< getRegistrationRequest");
 
     return new RegistrationRequest(U2FConsts.U2F_V2, challengeBase64, appId, sessionId);
   }
@@ -108,30 +178,51 @@ public class U2FServerReferenceImpl implements U2FServer {
   @Override
   public SecurityKeyData processRegistrationResponse(RegistrationResponse registrationResponse,
       long currentTimeInMillis) throws U2FException {
-    Log.info(">> processRegistrationResponse");
+    Trace.event(Level.FINE, null, ">> processRegistrationResponse");
 
-    String sessionId = registrationResponse.getSessionId();
-    String clientDataBase64 = registrationResponse.getClientData();
-    String rawRegistrationDataBase64 = registrationResponse.getRegistrationData();
+    EnrollSessionData sessionData = loadEnrollSessionData(registrationResponse.getSessionId());
+    SecurityKeyData securityKeyData =
+        verifyRegistrationResponse(registrationResponse, sessionData, currentTimeInMillis);
+    commitRegistration(sessionData, securityKeyData);
 
-    Log.info(">> rawRegistrationDataBase64: " + rawRegistrationDataBase64);
-    EnrollSessionData sessionData = dataStore.getEnrollSessionData(sessionId);
+    Trace.event(Level.FINE, sessionData.getAccountName(), "<< processRegistrationResponse");
+    return securityKeyData;
+  }
+
+  EnrollSessionData loadEnrollSessionData(String sessionId) throws U2FException {
+    EnrollSessionData sessionData = dataStore.consumeEnrollSessionData(sessionId);
 
     if (sessionData == null) {
       throw new U2FException("Unknown session_id");
     }
+    return sessionData;
+  }
+
+  /**
+   * Checks the client data, attestation signature and attestation certificate of a registration
+   * response, and returns the new security key. Does not touch the data store.
+   */
+  SecurityKeyData verifyRegistrationResponse(RegistrationResponse registrationResponse,
+      EnrollSessionData sessionData, long currentTimeInMillis) throws U2FException {
+    String sessionId = registrationResponse.getSessionId();
+    String clientDataBase64 = registrationResponse.getClientData();
+    String rawRegistrationDataBase64 = registrationResponse.getRegistrationData();
+
 
     String appId = sessionData.getAppId();
-    String clientData = new String(Base64.decodeBase64(clientDataBase64));
+    byte[] clientDataBytes = Base64.decodeBase64(clientDataBase64);
     byte[] rawRegistrationData = Base64.decodeBase64(rawRegistrationDataBase64);
-    Log.info("-- Input --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  challenge: " + Hex.encodeHexString(sessionData.getChallenge()));
-    Log.info("  accountName: " + sessionData.getAccountName());
-    Log.info("  clientData: " + clientData);
-    Log.info("  rawRegistrationData: " + Hex.encodeHexString(rawRegistrationData));
+    String accountName = sessionData.getAccountName();
+    Trace.field(Level.FINER, accountName, "sessionId", sessionId);
+    Trace.field(Level.FINER, accountName, "challenge", sessionData.getChallenge());
+    if (Trace.isEnabled(Level.FINER, accountName)) {
+      Trace.field(Level.FINER, accountName, "clientData",
+          new String(clientDataBytes, Charsets.UTF_8));
+    }
+    Trace.field(Level.FINER, accountName, "rawRegistrationData", rawRegistrationData);
 
-    RegisterResponse registerResponse = RawMessageCodec.decodeRegisterResponse(rawRegistrationData);
+    RegisterResponse registerResponse =
+        RawMessageCodec.decodeRegisterResponse(rawRegistrationData, attestationCertificates);
 
     byte[] userPublicKey = registerResponse.getUserPublicKey();
     byte[] keyHandle = registerResponse.getKeyHandle();
@@ -139,57 +230,47 @@ public class U2FServerReferenceImpl implements U2FServer {
     byte[] signature = registerResponse.getSignature();
     List<Transports> transports = null;
     try {
-      transports = parseTransportsExtension(attestationCertificate);
+      transports = attestationCertificates.getTransports(attestationCertificate);
     } catch (CertificateParsingException e1) {
       Log.warning("Could not parse transports extension " + e1.getMessage());
     }
 
 //    transports = new LinkedList<Transports>();
 //    transports.add(Transports.NFC);
-    Log.info("-- Parsed rawRegistrationResponse --");
-    Log.info("  userPublicKey: " + Hex.encodeHexString(userPublicKey));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
-    Log.info("  attestationCertificate: " + attestationCertificate.toString());
-    Log.info("  transports: " + transports);
-    try {
-      Log.info("  attestationCertificate bytes: "
-          + Hex.encodeHexString(attestationCertificate.getEncoded()));
-    } catch (CertificateEncodingException e) {
-      throw new U2FException("Cannot encode certificate", e);
-    }
-    Log.info("  signature: " + Hex.encodeHexString(signature));
+    Trace.field(Level.FINER, accountName, "userPublicKey", userPublicKey);
+    Trace.field(Level.FINER, accountName, "keyHandle", keyHandle);
+    Trace.field(Level.FINEST, accountName, "attestationCertificate", attestationCertificate);
+    Trace.field(Level.FINER, accountName, "transports", transports);
+    Trace.field(Level.FINER, accountName, "signature", signature);
 
-    byte[] appIdSha256 = cryto.computeSha256(appId.getBytes());
-    byte[] clientDataSha256 = cryto.computeSha256(clientData.getBytes());
-    byte[] signedBytes = RawMessageCodec.encodeRegistrationSignedBytes(appIdSha256, clientDataSha256,
-        keyHandle, userPublicKey);
+    byte[] appIdSha256 = appIdRegistry.lookup(appId).getSha256();
 
-    Set<X509Certificate> trustedCertificates = dataStore.getTrustedCertificates();
-    if (!trustedCertificates.contains(attestationCertificate)) {
-      Log.warning("attestion cert is not trusted");
-    }
-
-    verifyBrowserData(new JsonParser().parse(clientData), "navigator.id.finishEnrollment", sessionData);
+    verifyBrowserData(ClientDataScanner.scan(clientDataBytes),
+        ClientDataCodec.REQUEST_TYPE_REGISTER, sessionData);
 
-    Log.info("Verifying signature of bytes " + Hex.encodeHexString(signedBytes));
-    if (!cryto.verifySignature(attestationCertificate, signedBytes, signature)) {
+    if (!cryto.verifyRegistrationSignature(attestationCertificate, appIdSha256, clientDataBytes,
+        keyHandle, userPublicKey, signature)) {
       throw new U2FException("Signature is invalid");
     }
 
+    attestationTrustStore.checkTrusted(attestationCertificate);
+
     // The first time we create the SecurityKeyData, we set the counter value to 0.
     // We don't actually know what the counter value of the real device is - but it will
     // be something bigger (or equal) to 0, so subsequent signatures will check out ok.
-    SecurityKeyData securityKeyData = new SecurityKeyData(currentTimeInMillis, transports,
+    return new SecurityKeyData(currentTimeInMillis, transports,
         keyHandle, userPublicKey, attestationCertificate, /* initial counter value */ 0);
-    dataStore.addSecurityKeyData(sessionData.getAccountName(), securityKeyData);
+  }
 
-    Log.info("<< processRegistrationResponse");
-    return securityKeyData;
+  void commitRegistration(EnrollSessionData sessionData, SecurityKeyData securityKeyData) {
+    dataStore.addSecurityKeyData(sessionData.getAccountName(), securityKeyData);
   }
 
   @Override
   public U2fSignRequest getSignRequest(String accountName, String appId) throws U2FException {
-    Log.info(">> getSignRequest " + accountName);
+    Trace.event(Level.FINE, accountName, ">> getSignRequest");
+
+    appId = appIdRegistry.lookup(appId).getAppId();
 
     List<SecurityKeyData> securityKeyDataList = dataStore.getSecurityKeyData(accountName);
 
@@ -197,22 +278,27 @@ public class U2FServerReferenceImpl implements U2FServer {
     String challengeBase64 = Base64.encodeBase64URLSafeString(challenge);
 
     ImmutableList.Builder<RegisteredKey> registeredKeys = ImmutableList.builder();
-    Log.info("  challenge: " + Hex.encodeHexString(challenge));
-    for (SecurityKeyData securityKeyData : securityKeyDataList) {
+    Trace.field(Level.FINER, accountName, "challenge", challenge);
+    if (securityKeyDataList.isEmpty()) {
+      return new U2fSignRequest(challengeBase64, registeredKeys.build());
+    }
 
-      SignSessionData sessionData = new SignSessionData(accountName, appId,
-          challenge, securityKeyData.getPublicKey());
-      String sessionId = dataStore.storeSessionData(sessionData);
+    // one session for the challenge, answerable by any of the account's keys
+    List<byte[]> keyHandles = Lists.newArrayListWithCapacity(securityKeyDataList.size());
+    for (SecurityKeyData securityKeyData : securityKeyDataList) {
+      keyHandles.add(securityKeyData.getKeyHandle());
+    }
+    String sessionId = dataStore.storeSessionData(
+        new SignSessionData(accountName, appId, challenge, keyHandles));
+    Trace.field(Level.FINER, accountName, "sessionId", sessionId);
 
+    for (SecurityKeyData securityKeyData : securityKeyDataList) {
       byte[] keyHandle = securityKeyData.getKeyHandle();
       List<Transports> transports = securityKeyData.getTransports();
-      Log.info("-- Output --");
-      Log.info("  sessionId: " + sessionId);
-      Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
+      Trace.field(Level.FINER, accountName, "keyHandle", keyHandle);
 
       String keyHandleBase64 = Base64.encodeBase64URLSafeString(keyHandle);
 
-      Log.info("<< getRegisteredKey " + accountName);
       registeredKeys.add(new RegisteredKey(U2FConsts.U2F_V2, keyHandleBase64, transports, appId, sessionId));
     }
 
@@ -221,78 +307,249 @@ public class U2FServerReferenceImpl implements U2FServer {
 
   @Override
   public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException {
-    Log.info(">> processSignResponse");
+    Trace.event(Level.FINE, null, ">> processSignResponse");
 
-    String sessionId = signResponse.getSessionId();
-    String browserDataBase64 = signResponse.getClientData();
-    String rawSignDataBase64 = signResponse.getSignatureData();
+    SignSessionData sessionData = loadSignSessionData(signResponse.getSessionId());
+    SecurityKeyData securityKeyData = loadSecurityKeyData(signResponse, sessionData);
+    int counter = verifySignResponse(signResponse, sessionData, securityKeyData);
+    commitSignResponse(sessionData, securityKeyData, counter);
 
-    SignSessionData sessionData = dataStore.getSignSessionData(sessionId);
+    Trace.event(Level.FINE, sessionData.getAccountName(), "<< processSignResponse");
+    return securityKeyData;
+  }
+
+  SignSessionData loadSignSessionData(String sessionId) throws U2FException {
+    SignSessionData sessionData = dataStore.consumeSignSessionData(sessionId);
 
     if (sessionData == null) {
       throw new U2FException("Unknown session_id");
     }
+    return sessionData;
+  }
 
-    String appId = sessionData.getAppId();
-    SecurityKeyData securityKeyData = null;
+  SecurityKeyData loadSecurityKeyData(SignResponse signResponse, SignSessionData sessionData)
+      throws U2FException {
+    byte[] keyHandle = getSessionKeyHandle(signResponse, sessionData);
+    if (keyHandle == null) {
+      return findSecurityKeyData(signResponse, sessionData,
+          dataStore.getSecurityKeyData(sessionData.getAccountName()));
+    }
+    SecurityKeyData securityKeyData =
+        dataStore.getSecurityKeyDataByKeyHandle(sessionData.getAccountName(), keyHandle);
+    if (securityKeyData == null) {
+      throw new U2FException("No security keys registered for this user");
+    }
+    return securityKeyData;
+  }
+
+  /**
+   * Advances the key's counter in the data store. Fails if a concurrent sign-in already
+   * advanced it to {@code counter} or beyond.
+   */
+  void commitSignResponse(SignSessionData sessionData, SecurityKeyData securityKeyData,
+      int counter) throws U2FException {
+    if (!dataStore.advanceCounterIfGreater(sessionData.getAccountName(),
+        securityKeyData.getKeyHandle(), counter)) {
+      throw new U2FException("Counter value smaller than expected!");
+    }
+  }
+
+  @Override
+  public List<SignResult> processSignResponses(List<SignResponse> signResponses) {
+    if (!(dataStore instanceof BatchDataStore)) {
+      ImmutableList.Builder<SignResult> results = ImmutableList.builder();
+      for (SignResponse signResponse : signResponses) {
+        try {
+          results.add(SignResult.success(processSignResponse(signResponse)));
+        } catch (U2FException e) {
+          results.add(SignResult.failure(e));
+        }
+      }
+      return results.build();
+    }
+    BatchDataStore batchDataStore = (BatchDataStore) dataStore;
+    Trace.field(Level.FINE, null, ">> processSignResponses", signResponses.size());
+
+    int size = signResponses.size();
+    SignResult[] results = new SignResult[size];
+    SignSessionData[] sessionData = new SignSessionData[size];
+    SecurityKeyData[] securityKeyData = new SecurityKeyData[size];
+
+    // one session fetch and one key lookup for the whole batch
+    Set<String> sessionIds = Sets.newHashSet();
+    for (SignResponse signResponse : signResponses) {
+      sessionIds.add(signResponse.getSessionId());
+    }
+    Map<String, SignSessionData> sessions = batchDataStore.consumeSignSessionData(sessionIds);
+    Set<String> accountNames = Sets.newHashSet();
+    for (SignSessionData session : sessions.values()) {
+      accountNames.add(session.getAccountName());
+    }
+    Map<String, List<SecurityKeyData>> securityKeys =
+        batchDataStore.getSecurityKeyData(accountNames);
+
+    // the signature checks are independent of each other, so fan them out
+    List<Future<Integer>> counters = Lists.newArrayListWithCapacity(size);
+    // a session is consumed once, so only the first response in the batch may redeem it
+    Set<String> redeemedSessionIds = Sets.newHashSet();
+    for (int i = 0; i < size; i++) {
+      final SignResponse signResponse = signResponses.get(i);
+      try {
+        final SignSessionData session = sessions.get(signResponse.getSessionId());
+        if (session == null || !redeemedSessionIds.add(signResponse.getSessionId())) {
+          throw new U2FException("Unknown session_id");
+        }
+        final SecurityKeyData key = findSecurityKeyData(signResponse, session,
+            securityKeys.get(session.getAccountName()));
+        sessionData[i] = session;
+        securityKeyData[i] = key;
+        counters.add(verificationExecutor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws U2FException {
+            return verifySignResponse(signResponse, session, key);
+          }
+        }));
+      } catch (U2FException e) {
+        results[i] = SignResult.failure(e);
+        counters.add(null);
+      }
+    }
 
-    for (SecurityKeyData temp : dataStore.getSecurityKeyData(sessionData.getAccountName())) {
-      if (Arrays.equals(sessionData.getPublicKey(), temp.getPublicKey())) {
-        securityKeyData = temp;
-        break;
+    // collect in order; the data store applies the updates in that order too, so a key signing
+    // twice in one batch must still count upwards
+    List<CounterUpdate> counterUpdates = Lists.newArrayList();
+    List<Integer> updatedResults = Lists.newArrayList();
+    for (int i = 0; i < size; i++) {
+      if (results[i] != null) {
+        continue;
+      }
+      try {
+        int counter = getVerifiedCounter(counters.get(i));
+        counterUpdates.add(new CounterUpdate(sessionData[i].getAccountName(),
+            securityKeyData[i].getKeyHandle(), counter));
+        updatedResults.add(i);
+      } catch (U2FException e) {
+        results[i] = SignResult.failure(e);
       }
     }
 
-    if (securityKeyData == null) {
-      throw new U2FException("No security keys registered for this user");
+    int accepted = 0;
+    if (!counterUpdates.isEmpty()) {
+      boolean[] advanced = batchDataStore.advanceCountersIfGreater(counterUpdates);
+      for (int j = 0; j < advanced.length; j++) {
+        int i = updatedResults.get(j);
+        if (advanced[j]) {
+          results[i] = SignResult.success(securityKeyData[i]);
+          accepted++;
+        } else {
+          results[i] = SignResult.failure(
+              new U2FException("Counter value smaller than expected!"));
+        }
+      }
+    }
+
+    Trace.field(Level.FINE, null, "<< processSignResponses accepted", accepted);
+    return ImmutableList.copyOf(results);
+  }
+
+  private static int getVerifiedCounter(Future<Integer> counter) throws U2FException {
+    try {
+      return counter.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof U2FException) {
+        throw (U2FException) e.getCause();
+      }
+      throw new U2FException("Error when verifying sign response", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new U2FException("Interrupted while verifying sign response", e);
     }
+  }
 
-    String browserData = new String(Base64.decodeBase64(browserDataBase64));
-    byte[] rawSignData = Base64.decodeBase64(rawSignDataBase64);
+  /**
+   * Finds the key that answered a sign session: the session's key for single-key sessions,
+   * otherwise the key whose handle is in the response, if the session covers that handle.
+   */
+  private static SecurityKeyData findSecurityKeyData(SignResponse signResponse,
+      SignSessionData sessionData, List<SecurityKeyData> securityKeyDataList)
+      throws U2FException {
+    byte[] keyHandle = getSessionKeyHandle(signResponse, sessionData);
+    if (securityKeyDataList != null) {
+      for (SecurityKeyData temp : securityKeyDataList) {
+        if ((keyHandle == null)
+            ? Arrays.equals(sessionData.getPublicKey(), temp.getPublicKey())
+            : Arrays.equals(keyHandle, temp.getKeyHandle())) {
+          return temp;
+        }
+      }
+    }
+    throw new U2FException("No security keys registered for this user");
+  }
+
+  /**
+   * Returns the key handle a response to a multi-key sign session was signed with, or null for
+   * single-key sessions.
+   */
+  private static byte[] getSessionKeyHandle(SignResponse signResponse,
+      SignSessionData sessionData) throws U2FException {
+    if (sessionData.getPublicKey() != null) {
+      return null;
+    }
+    byte[] keyHandle = Base64.decodeBase64(signResponse.getKeyHandle());
+    if (!sessionData.containsKeyHandle(keyHandle)) {
+      throw new U2FException("Key handle was not part of this sign session");
+    }
+    return keyHandle;
+  }
 
-    Log.info("-- Input --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  publicKey: " + Hex.encodeHexString(securityKeyData.getPublicKey()));
-    Log.info("  challenge: " + Hex.encodeHexString(sessionData.getChallenge()));
-    Log.info("  accountName: " + sessionData.getAccountName());
-    Log.info("  browserData: " + browserData);
-    Log.info("  rawSignData: " + Hex.encodeHexString(rawSignData));
+  /**
+   * Checks the client data, user presence, counter and signature of a sign response, and returns
+   * the counter value that the data store should be advanced to. Does not touch the data store.
+   */
+  int verifySignResponse(SignResponse signResponse, SignSessionData sessionData,
+      SecurityKeyData securityKeyData) throws U2FException {
+    String appId = sessionData.getAppId();
+    byte[] browserDataBytes = Base64.decodeBase64(signResponse.getClientData());
+    byte[] rawSignData = Base64.decodeBase64(signResponse.getSignatureData());
+
+    String accountName = sessionData.getAccountName();
+    Trace.field(Level.FINER, accountName, "sessionId", signResponse.getSessionId());
+    Trace.field(Level.FINER, accountName, "publicKey", securityKeyData.getPublicKey());
+    Trace.field(Level.FINER, accountName, "challenge", sessionData.getChallenge());
+    if (Trace.isEnabled(Level.FINER, accountName)) {
+      Trace.field(Level.FINER, accountName, "browserData",
+          new String(browserDataBytes, Charsets.UTF_8));
+    }
+    Trace.field(Level.FINER, accountName, "rawSignData", rawSignData);
 
-    verifyBrowserData(new JsonParser().parse(browserData), "navigator.id.getAssertion", sessionData);
+    verifyBrowserData(ClientDataScanner.scan(browserDataBytes),
+        ClientDataCodec.REQUEST_TYPE_AUTHENTICATE, sessionData);
 
     AuthenticateResponse authenticateResponse = RawMessageCodec.decodeAuthenticateResponse(rawSignData);
     byte userPresence = authenticateResponse.getUserPresence();
     int counter = authenticateResponse.getCounter();
     byte[] signature = authenticateResponse.getSignature();
 
-    Log.info("-- Parsed rawSignData --");
-    Log.info("  userPresence: " + Integer.toHexString(userPresence & 0xFF));
-    Log.info("  counter: " + counter);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
+    Trace.field(Level.FINER, accountName, "userPresence", userPresence & 0xFF);
+    Trace.field(Level.FINER, accountName, "counter", counter);
+    Trace.field(Level.FINER, accountName, "signature", signature);
 
     if (userPresence != UserPresenceVerifier.USER_PRESENT_FLAG) {
       throw new U2FException("User presence invalid during authentication");
     }
 
+    // fail fast on replays; commitSignResponse makes the final, atomic check
     if (counter <= securityKeyData.getCounter()) {
       throw new U2FException("Counter value smaller than expected!");
     }
 
-    byte[] appIdSha256 = cryto.computeSha256(appId.getBytes());
-    byte[] browserDataSha256 = cryto.computeSha256(browserData.getBytes());
-    byte[] signedBytes = RawMessageCodec.encodeAuthenticateSignedBytes(appIdSha256, userPresence,
-        counter, browserDataSha256);
+    byte[] appIdSha256 = appIdRegistry.lookup(appId).getSha256();
 
-    Log.info("Verifying signature of bytes " + Hex.encodeHexString(signedBytes));
-    if (!cryto.verifySignature(cryto.decodePublicKey(securityKeyData.getPublicKey()), signedBytes,
-        signature)) {
+    if (!cryto.verifyAuthenticateSignature(cryto.decodePublicKey(securityKeyData.getPublicKey()),
+        appIdSha256, userPresence, counter, browserDataBytes, signature)) {
       throw new U2FException("Signature is invalid");
     }
-
-    dataStore.updateSecurityKeyCounter(sessionData.getAccountName(), securityKeyData.getPublicKey(), counter);
-
-    Log.info("<< processSignResponse");
-    return securityKeyData;
+    return counter;
   }
 
   /**
@@ -372,36 +629,28 @@ public class U2FServerReferenceImpl implements U2FServer {
     return transportsList;
   }
 
-  private void verifyBrowserData(JsonElement browserDataAsElement,
+  private void verifyBrowserData(ClientDataScanner browserData,
       String messageType, EnrollSessionData sessionData) throws U2FException {
 
-    if (!browserDataAsElement.isJsonObject()) {
-      throw new U2FException("browserdata has wrong format");
-    }
-
-    JsonObject browserData = browserDataAsElement.getAsJsonObject();
-
     // check that the right "typ" parameter is present in the browserdata JSON
-    if (!browserData.has(TYPE_PARAM)) {
+    if (!browserData.hasType()) {
       throw new U2FException("bad browserdata: missing 'typ' param");
     }
 
-    String type = browserData.get(TYPE_PARAM).getAsString();
-    if (!messageType.equals(type)) {
-      throw new U2FException("bad browserdata: bad type " + type);
+    if (!browserData.typeEquals(messageType)) {
+      throw new U2FException("bad browserdata: bad type " + browserData.getType());
     }
 
     // check that the right challenge is in the browserdata
-    if (!browserData.has(CHALLENGE_PARAM)) {
+    if (!browserData.hasChallenge()) {
       throw new U2FException("bad browserdata: missing 'challenge' param");
     }
 
-    if (browserData.has(ORIGIN_PARAM)) {
-      verifyOrigin(browserData.get(ORIGIN_PARAM).getAsString());
+    if (browserData.hasOrigin()) {
+      verifyOrigin(sessionData.getAppId(), browserData.getOrigin());
     }
 
-    byte[] challengeFromBrowserData =
-        Base64.decodeBase64(browserData.get(CHALLENGE_PARAM).getAsString());
+    byte[] challengeFromBrowserData = browserData.decodeChallenge();
 
 
     if (!Arrays.equals(challengeFromBrowserData, sessionData.getChallenge())) {
@@ -411,11 +660,10 @@ public class U2FServerReferenceImpl implements U2FServer {
     // TODO: Deal with ChannelID
   }
 
-  private void verifyOrigin(String origin) throws U2FException {
-    if (!allowedOrigins.contains(canonicalizeOrigin(origin))) {
+  private void verifyOrigin(String appId, String origin) throws U2FException {
+    if (!originMatcher.matches(appId, origin)) {
       throw new U2FException(origin +
-          " is not a recognized home origin for this backend" +
-          Joiner.on(", ").join(allowedOrigins));
+          " is not a recognized home origin for this backend: " + originMatcher);
     }
   }
 
@@ -430,21 +678,7 @@ public class U2FServerReferenceImpl implements U2FServer {
     dataStore.removeSecuityKey(accountName, publicKey);
   }
 
-  private static Set<String> canonicalizeOrigins(Set<String> origins) {
-    ImmutableSet.Builder<String> result = ImmutableSet.builder();
-    for (String origin : origins) {
-      result.add(canonicalizeOrigin(origin));
-    }
-    return result.build();
-  }
-
   static String canonicalizeOrigin(String url) {
-    URI uri;
-    try {
-      uri = new URI(url);
-    } catch (URISyntaxException e) {
-      throw new RuntimeException("specified bad origin", e);
-    }
-    return uri.getScheme() + "://" + uri.getAuthority();
+    return OriginMatcher.canonicalizeOrigin(url);
   }
 }
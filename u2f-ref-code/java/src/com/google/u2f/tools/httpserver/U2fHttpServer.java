@@ -7,6 +7,7 @@
 package com.google.u2f.tools.httpserver;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.cert.CertificateException;
@@ -26,8 +27,9 @@ import com.google.u2f.server.ChallengeGenerator;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.SessionIdGenerator;
 import com.google.u2f.server.U2FServer;
-import com.google.u2f.server.impl.BouncyCastleCrypto;
+import com.google.u2f.server.impl.FileDataStore;
 import com.google.u2f.server.impl.MemoryDataStore;
+import com.google.u2f.server.impl.ThreadLocalBouncyCastleCrypto;
 import com.google.u2f.server.impl.U2FServerReferenceImpl;
 import com.google.u2f.tools.httpserver.servlets.EnrollDataServlet;
 import com.google.u2f.tools.httpserver.servlets.EnrollFinishServlet;
@@ -38,6 +40,7 @@ import com.google.u2f.tools.httpserver.servlets.StaticHandler;
 
 public class U2fHttpServer {
   private final static Logger Log = Logger.getLogger(U2fHttpServer.class.getSimpleName());
+  private static final String DATA_STORE_FILE_PROPERTY = "com.google.u2f.dataStoreFile";
 
   private final Object lock = new Object();
   private final U2FServer u2fServer;
@@ -92,12 +95,23 @@ public class U2fHttpServer {
     } catch (DecoderException e) {
       throw new RuntimeException(e);
     }
+    // keys are kept in memory only, unless a file to persist them to is given
     DataStore dataStore = new MemoryDataStore(sessionIdGenerator);
+    String dataStoreFile = System.getProperty(DATA_STORE_FILE_PROPERTY);
+    if (dataStoreFile != null) {
+      try {
+        dataStore = new FileDataStore(new File(dataStoreFile), sessionIdGenerator);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
     dataStore.addTrustedCertificate(trustedCertificate);
 
-    // this implementation will only accept signatures from http://localhost:8080
+    // this implementation will only accept signatures from http://localhost:8080, for the
+    // appId http://localhost:8080
     u2fServer = new U2FServerReferenceImpl(challengeGenerator, dataStore,
-        new BouncyCastleCrypto(), ImmutableSet.of("http://localhost:8080"));
+        new ThreadLocalBouncyCastleCrypto(), ImmutableSet.of("http://localhost:8080"),
+        ImmutableSet.of("http://localhost:8080"));
     Container dispatchContainer = new RequestDispatcher()
         .registerContainer("/", new StaticHandler("text/html","html/index.html"))
         .registerContainer("/enroll", new StaticHandler("text/html","html/enroll.html"))
@@ -0,0 +1,88 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.trace;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Diagnostic tracing for the request paths, on top of java.util.logging.
+ *
+ * <p>Records are named events and fields of a request. Whether a record is emitted depends on
+ * the logger level and on per-account sampling, and both are checked before anything is
+ * rendered: values are passed as-is and only turned into strings (hex for byte arrays) when the
+ * record is actually written. With tracing disabled, a call allocates nothing.
+ *
+ * <p>Sampling is deterministic per account, so that all records of a sampled account's requests
+ * are kept together. It is set through {@link #setAccountSampling(int)} or the
+ * {@value #ACCOUNT_SAMPLING_PROPERTY} system property. Records without an account are never
+ * sampled out.
+ */
+public class Tracer {
+  public static final String ACCOUNT_SAMPLING_PROPERTY = "com.google.u2f.trace.accountSampling";
+
+  private static volatile int accountSampling = Integer.getInteger(ACCOUNT_SAMPLING_PROPERTY, 1);
+
+  private final Logger logger;
+
+  private Tracer(Logger logger) {
+    this.logger = logger;
+  }
+
+  public static Tracer getTracer(Class<?> clazz) {
+    return new Tracer(Logger.getLogger(clazz.getName()));
+  }
+
+  /** Traces one in {@code oneIn} accounts. 1 (the default) traces all of them. */
+  public static void setAccountSampling(int oneIn) {
+    if (oneIn < 1) {
+      throw new IllegalArgumentException("sampling must be at least 1, was " + oneIn);
+    }
+    accountSampling = oneIn;
+  }
+
+  public boolean isEnabled(Level level, String accountName) {
+    return logger.isLoggable(level) && isSampled(accountName);
+  }
+
+  public void event(Level level, String accountName, String event) {
+    if (isEnabled(level, accountName)) {
+      logger.log(level, prefix(accountName) + event);
+    }
+  }
+
+  public void field(Level level, String accountName, String name, Object value) {
+    if (isEnabled(level, accountName)) {
+      logger.log(level, prefix(accountName) + "  " + name + ": " + render(value));
+    }
+  }
+
+  public void field(Level level, String accountName, String name, long value) {
+    if (isEnabled(level, accountName)) {
+      logger.log(level, prefix(accountName) + "  " + name + ": " + value);
+    }
+  }
+
+  private static boolean isSampled(String accountName) {
+    int oneIn = accountSampling;
+    return oneIn == 1 || accountName == null
+        || (accountName.hashCode() & Integer.MAX_VALUE) % oneIn == 0;
+  }
+
+  private static String prefix(String accountName) {
+    return (accountName == null) ? "" : "[" + accountName + "] ";
+  }
+
+  private static String render(Object value) {
+    if (value instanceof byte[]) {
+      return Hex.encodeHexString((byte[]) value);
+    }
+    return String.valueOf(value);
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+
+public class ClientDataScannerTest extends TestVectors {
+
+  @Test
+  public void testScan() throws Exception {
+    ClientDataScanner clientData = scan(BROWSER_DATA_ENROLL);
+
+    assertTrue(clientData.typeEquals(ClientDataCodec.REQUEST_TYPE_REGISTER));
+    assertFalse(clientData.typeEquals(ClientDataCodec.REQUEST_TYPE_AUTHENTICATE));
+    assertEquals(ClientDataCodec.REQUEST_TYPE_REGISTER, clientData.getType());
+    assertArrayEquals(SERVER_CHALLENGE_ENROLL, clientData.decodeChallenge());
+    assertEquals(ORIGIN, clientData.getOrigin());
+    assertEquals(CHANNEL_ID_STRING, clientData.getChannelId());
+  }
+
+  @Test
+  public void testScan_escapesAndUnknownMembers() throws Exception {
+    ClientDataScanner clientData = scan(" {\"extra\":[1, -2.5e3, true, null, {\"a\":\"\\\"\"}],"
+        + "\"ty\\u0070\":\"navigator.id.getAssertion\","
+        + "\"origin\":\"http:\\/\\/example.com\"} ");
+
+    assertTrue(clientData.typeEquals(ClientDataCodec.REQUEST_TYPE_AUTHENTICATE));
+    assertEquals("http://example.com", clientData.getOrigin());
+    assertFalse(clientData.hasChallenge());
+    assertNull(clientData.decodeChallenge());
+    assertFalse(clientData.hasChannelId());
+  }
+
+  @Test
+  public void testScan_malformed() throws Exception {
+    String[] malformed = {
+        "",
+        "[]",
+        "{",
+        "{\"typ\"}",
+        "{\"typ\":\"a\",}",
+        "{\"typ\":\"a\"} x",
+        "{\"typ\":\"a\",\"typ\":\"a\"}",
+        "{\"typ\":1}",
+        "{\"origin\":null}",
+        "{\"typ\":\"a\\x\"}",
+        "{\"typ\":\"a\nb\"}",
+        "{\"x\":01}",
+        "{\"x\":1.}",
+        "{\"x\":tru}",
+        "{\"x\":[1,]}",
+    };
+    for (String clientData : malformed) {
+      try {
+        scan(clientData);
+        fail("expected exception for " + clientData);
+      } catch (U2FException expected) {
+      }
+    }
+  }
+
+  private static ClientDataScanner scan(String clientData) throws U2FException {
+    return ClientDataScanner.scan(clientData.getBytes(Charsets.UTF_8));
+  }
+}
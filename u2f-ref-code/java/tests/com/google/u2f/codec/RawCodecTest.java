@@ -8,6 +8,10 @@ package com.google.u2f.codec;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Signature;
 
 import org.junit.Test;
 
@@ -17,6 +21,7 @@ import com.google.u2f.key.messages.AuthenticateRequest;
 import com.google.u2f.key.messages.AuthenticateResponse;
 import com.google.u2f.key.messages.RegisterRequest;
 import com.google.u2f.key.messages.RegisterResponse;
+import com.google.u2f.server.impl.AttestationCertificateCache;
 
 public class RawCodecTest extends TestVectors {
 
@@ -64,6 +69,21 @@ public class RawCodecTest extends TestVectors {
         KEY_HANDLE, VENDOR_CERTIFICATE, SIGNATURE_ENROLL), registerResponse);
   }
 
+  @Test
+  public void testDecodeRegisterResponse_sharedCertificate() throws Exception {
+    AttestationCertificateCache certificateCache = new AttestationCertificateCache();
+
+    RegisterResponse first = RawMessageCodec.decodeRegisterResponse(REGISTRATION_RESPONSE_DATA,
+        certificateCache);
+    RegisterResponse second = RawMessageCodec.decodeRegisterResponse(REGISTRATION_RESPONSE_DATA,
+        certificateCache);
+
+    assertEquals(new RegisterResponse(USER_PUBLIC_KEY_ENROLL_HEX,
+        KEY_HANDLE, VENDOR_CERTIFICATE, SIGNATURE_ENROLL), first);
+    assertSame(first.getAttestationCertificate(), second.getAttestationCertificate());
+    assertEquals(1, certificateCache.stats().hitCount());
+  }
+
   @Test
   public void testEncodeAuthenticateRequest() throws Exception {
     AuthenticateRequest authenticateRequest = new AuthenticateRequest(
@@ -108,4 +128,26 @@ public class RawCodecTest extends TestVectors {
 
     assertArrayEquals(EXPECTED_AUTHENTICATE_SIGNED_BYTES, encodedBytes);
   }
+
+  @Test
+  public void testUpdateRegisterSignedBytes() throws Exception {
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initVerify(VENDOR_CERTIFICATE.getPublicKey());
+
+    RawMessageCodec.updateRegistrationSignedBytes(signature, APP_ID_ENROLL_SHA256,
+        BROWSER_DATA_ENROLL_SHA256, KEY_HANDLE, USER_PUBLIC_KEY_ENROLL_HEX);
+
+    assertTrue(signature.verify(SIGNATURE_ENROLL));
+  }
+
+  @Test
+  public void testUpdateAuthenticateSignedBytes() throws Exception {
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initVerify(USER_PUBLIC_KEY_SIGN);
+
+    RawMessageCodec.updateAuthenticateSignedBytes(signature, APP_ID_SIGN_SHA256,
+        UserPresenceVerifier.USER_PRESENT_FLAG, COUNTER_VALUE, BROWSER_DATA_SIGN_SHA256);
+
+    assertTrue(signature.verify(SIGNATURE_AUTHENTICATE));
+  }
 }
@@ -0,0 +1,62 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.security.interfaces.ECPrivateKey;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+
+public class AeadKeyWrapperTest extends TestVectors {
+  private final AeadKeyWrapper keyWrapper = new AeadKeyWrapper(new byte[16]);
+
+  @Test
+  public void testWrapUnwrap() throws Exception {
+    byte[] keyHandle = keyWrapper.wrap(APP_ID_ENROLL_SHA256, USER_KEY_PAIR_ENROLL);
+
+    assertEquals(((ECPrivateKey) USER_PRIVATE_KEY_ENROLL).getS(),
+        ((ECPrivateKey) keyWrapper.unwrap(APP_ID_ENROLL_SHA256, keyHandle)).getS());
+    // a fresh nonce per registration
+    assertFalse(Arrays.equals(keyHandle,
+        keyWrapper.wrap(APP_ID_ENROLL_SHA256, USER_KEY_PAIR_ENROLL)));
+  }
+
+  @Test
+  public void testKeyHandleIsBoundToApplication() throws Exception {
+    byte[] keyHandle = keyWrapper.wrap(APP_ID_ENROLL_SHA256, USER_KEY_PAIR_ENROLL);
+
+    try {
+      keyWrapper.unwrap(APP_ID_SIGN_SHA256, keyHandle);
+      fail("expected a U2FException");
+    } catch (U2FException expected) {
+    }
+  }
+
+  @Test
+  public void testTamperedKeyHandleIsRejected() throws Exception {
+    byte[] keyHandle = keyWrapper.wrap(APP_ID_ENROLL_SHA256, USER_KEY_PAIR_ENROLL);
+    keyHandle[keyHandle.length / 2] ^= 1;
+
+    try {
+      keyWrapper.unwrap(APP_ID_ENROLL_SHA256, keyHandle);
+      fail("expected a U2FException");
+    } catch (U2FException expected) {
+    }
+    try {
+      new AeadKeyWrapper(new byte[32]).unwrap(APP_ID_ENROLL_SHA256, KEY_HANDLE);
+      fail("expected a U2FException");
+    } catch (U2FException expected) {
+    }
+  }
+}
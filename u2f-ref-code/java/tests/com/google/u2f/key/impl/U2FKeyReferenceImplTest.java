@@ -9,10 +9,13 @@ package com.google.u2f.key.impl;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.security.KeyPair;
 import java.security.Signature;
 
 import org.junit.Before;
@@ -20,6 +23,7 @@ import org.junit.Test;
 import org.mockito.Mock;
 
 import com.google.u2f.TestVectors;
+import com.google.u2f.codec.RawMessageCodec;
 import com.google.u2f.key.DataStore;
 import com.google.u2f.key.KeyHandleGenerator;
 import com.google.u2f.key.KeyPairGenerator;
@@ -97,4 +101,29 @@ public class U2FKeyReferenceImplTest extends TestVectors {
     ecdsaSignature.update(EXPECTED_AUTHENTICATE_SIGNED_BYTES);
     assertTrue(ecdsaSignature.verify(authenticateResponse.getSignature()));
   }
+
+  @Test
+  public void testStatelessKeyHandles() throws Exception {
+    U2FKey statelessKey = new U2FKeyReferenceImpl(
+        VENDOR_CERTIFICATE,
+        VENDOR_CERTIFICATE_PRIVATE_KEY,
+        mockKeyPairGenerator,
+        new AeadKeyWrapper(new byte[16]),
+        mockDataStore,
+        mockUserPresenceVerifier,
+        new BouncyCastleCrypto());
+    RegisterResponse registerResponse = statelessKey.register(
+        new RegisterRequest(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256));
+
+    AuthenticateResponse authenticateResponse = statelessKey.authenticate(
+        new AuthenticateRequest(AuthenticateRequest.USER_PRESENCE_SIGN, BROWSER_DATA_SIGN_SHA256,
+            APP_ID_ENROLL_SHA256, registerResponse.getKeyHandle()));
+
+    verify(mockDataStore, never()).storeKeyPair(any(byte[].class), any(KeyPair.class));
+    Signature ecdsaSignature = Signature.getInstance("SHA256withECDSA");
+    ecdsaSignature.initVerify(USER_PUBLIC_KEY_ENROLL);
+    ecdsaSignature.update(RawMessageCodec.encodeAuthenticateSignedBytes(APP_ID_ENROLL_SHA256,
+        authenticateResponse.getUserPresence(), COUNTER_VALUE, BROWSER_DATA_SIGN_SHA256));
+    assertTrue(ecdsaSignature.verify(authenticateResponse.getSignature()));
+  }
 }
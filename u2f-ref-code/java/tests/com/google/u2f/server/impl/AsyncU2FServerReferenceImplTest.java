@@ -0,0 +1,88 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.ChallengeGenerator;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.messages.SignResponse;
+
+public class AsyncU2FServerReferenceImplTest extends TestVectors {
+  @Mock ChallengeGenerator mockChallengeGenerator;
+  @Mock DataStore mockDataStore;
+
+  private final SecurityKeyData securityKeyData =
+      new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+  private AsyncU2FServerReferenceImpl asyncU2fServer;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
+        ImmutableList.of(securityKeyData));
+    when(mockDataStore.advanceCounterIfGreater(anyString(), any(byte[].class), anyInt()))
+        .thenReturn(true);
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+
+    asyncU2fServer = new AsyncU2FServerReferenceImpl(
+        new U2FServerReferenceImpl(mockChallengeGenerator, mockDataStore,
+            new BouncyCastleCrypto(), TRUSTED_DOMAINS),
+        1 /* cryptoThreads */, 1 /* ioThreads */);
+  }
+
+  @After
+  public void tearDown() {
+    asyncU2fServer.shutdown();
+  }
+
+  @Test
+  public void testProcessSignResponse() throws Exception {
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    assertEquals(securityKeyData, asyncU2fServer.processSignResponse(signResponse).get());
+    verify(mockDataStore).advanceCounterIfGreater(eq(ACCOUNT_NAME), eq(KEY_HANDLE),
+        eq(COUNTER_VALUE));
+  }
+
+  @Test
+  public void testProcessSignResponse_unknownSession() throws Exception {
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, "unknown_session_id");
+
+    try {
+      asyncU2fServer.processSignResponse(signResponse).get();
+      fail("expected exception, but didn't get it");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof U2FException);
+    }
+  }
+}
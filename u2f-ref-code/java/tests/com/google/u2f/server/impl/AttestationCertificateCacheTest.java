@@ -0,0 +1,75 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.Test;
+
+import com.google.u2f.TestVectors;
+
+public class AttestationCertificateCacheTest extends TestVectors {
+
+  @Test
+  public void testResolveIsInterned() throws Exception {
+    AttestationCertificateCache cache = new AttestationCertificateCache();
+    byte[] encoded = VENDOR_CERTIFICATE.getEncoded();
+
+    X509Certificate certificate = cache.resolve(encoded, 0, encoded.length);
+
+    assertSame(certificate, cache.resolve(encoded.clone(), 0, encoded.length));
+    assertEquals(VENDOR_CERTIFICATE, certificate);
+    assertEquals(1, cache.stats().hitCount());
+  }
+
+  @Test
+  public void testRetainedCertificatesAreBounded() throws Exception {
+    AttestationCertificateCache cache = new AttestationCertificateCache(4 /* maximumSize */);
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+    for (int serial = 1; serial <= 20; serial++) {
+      byte[] encoded = generateCertificate(keyPair, serial).getEncoded();
+      X509Certificate certificate = cache.resolve(encoded, 0, encoded.length);
+      // the transports of a certificate from this cache are remembered
+      assertNull(cache.getTransports(certificate));
+    }
+
+    assertTrue(cache.size() <= 4);
+    assertTrue(cache.transportsSize() <= 4);
+    assertTrue(cache.stats().evictionCount() >= 16);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static X509Certificate generateCertificate(KeyPair keyPair, int serial)
+      throws Exception {
+    X500Principal name = new X500Principal("CN=Test Attestation");
+    X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+    generator.setSerialNumber(BigInteger.valueOf(serial));
+    generator.setSubjectDN(name);
+    generator.setIssuerDN(name);
+    generator.setNotBefore(new Date(0));
+    generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000));
+    generator.setPublicKey(keyPair.getPublic());
+    generator.setSignatureAlgorithm("SHA256withECDSA");
+    return generator.generate(keyPair.getPrivate());
+  }
+}
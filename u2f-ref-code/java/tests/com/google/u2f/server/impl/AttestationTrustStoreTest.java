@@ -0,0 +1,181 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
+import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.SessionIdGenerator;
+
+@SuppressWarnings("deprecation")
+public class AttestationTrustStoreTest extends TestVectors {
+  private static final X500Principal CA_NAME = new X500Principal("CN=Test Attestation CA");
+
+  private final BouncyCastleCrypto crypto = new BouncyCastleCrypto();
+  private KeyPair caKeyPair;
+  private X509Certificate caCertificate;
+
+  @Before
+  public void setup() throws Exception {
+    caKeyPair = generateKeyPair();
+    caCertificate = generateCertificate(CA_NAME, caKeyPair.getPublic(), CA_NAME, caKeyPair,
+        null /* issuerCertificate */);
+  }
+
+  @Test
+  public void testIsTrusted_anchor() throws Exception {
+    AttestationTrustStore trustStore = new AttestationTrustStore(crypto,
+        ImmutableList.of(VENDOR_CERTIFICATE), AttestationTrustStore.Policy.ENFORCE);
+
+    assertTrue(trustStore.isTrusted(VENDOR_CERTIFICATE));
+    assertFalse(trustStore.isTrusted(TRUSTED_CERTIFICATE_2));
+  }
+
+  @Test
+  public void testIsTrusted_issuedByAnchor() throws Exception {
+    AttestationTrustStore trustStore = new AttestationTrustStore(crypto,
+        ImmutableList.of(caCertificate), AttestationTrustStore.Policy.ENFORCE);
+
+    // found through the authority key identifier
+    assertTrue(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, caCertificate)));
+    // found through the issuer name
+    assertTrue(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, null)));
+    // same issuer name, different key
+    assertFalse(trustStore.isTrusted(generateAttestationCertificate(generateKeyPair(), null)));
+  }
+
+  @Test
+  public void testAddTrustAnchor() throws Exception {
+    AttestationTrustStore trustStore = new AttestationTrustStore(crypto,
+        ImmutableList.<X509Certificate>of(), AttestationTrustStore.Policy.ENFORCE);
+    X509Certificate attestationCertificate =
+        generateAttestationCertificate(caKeyPair, caCertificate);
+    assertFalse(trustStore.isTrusted(attestationCertificate));
+
+    trustStore.addTrustAnchor(caCertificate);
+
+    assertTrue(trustStore.isTrusted(attestationCertificate));
+  }
+
+  @Test
+  public void testAnchorAddedToDataStore() throws Exception {
+    MemoryDataStore dataStore = new MemoryDataStore(new SessionIdGenerator() {
+      @Override
+      public String generateSessionId(String accountName) {
+        return accountName;
+      }
+    });
+    AttestationTrustStore trustStore = new AttestationTrustStore(crypto, dataStore,
+        AttestationTrustStore.Policy.ENFORCE);
+    assertFalse(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, caCertificate)));
+
+    dataStore.addTrustedCertificate(caCertificate);
+
+    assertTrue(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, caCertificate)));
+  }
+
+  @Test
+  public void testUnchangedDataStoreAnchorsAreNotCopied() throws Exception {
+    Set<X509Certificate> anchors = spy(Sets.<X509Certificate>newHashSet(caCertificate));
+    DataStore dataStore = mock(DataStore.class);
+    when(dataStore.getTrustedCertificates()).thenReturn(anchors);
+    AttestationTrustStore trustStore = new AttestationTrustStore(crypto, dataStore,
+        AttestationTrustStore.Policy.ENFORCE);
+
+    assertTrue(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, caCertificate)));
+    assertTrue(trustStore.isTrusted(generateAttestationCertificate(caKeyPair, caCertificate)));
+    verify(anchors, times(1)).iterator();
+
+    anchors.add(VENDOR_CERTIFICATE);
+
+    assertTrue(trustStore.isTrusted(VENDOR_CERTIFICATE));
+    verify(anchors, times(2)).iterator();
+  }
+
+  @Test
+  public void testCheckTrusted() throws Exception {
+    new AttestationTrustStore(crypto, ImmutableList.<X509Certificate>of(),
+        AttestationTrustStore.Policy.LOG).checkTrusted(VENDOR_CERTIFICATE);
+
+    try {
+      new AttestationTrustStore(crypto, ImmutableList.<X509Certificate>of(),
+          AttestationTrustStore.Policy.ENFORCE).checkTrusted(VENDOR_CERTIFICATE);
+      fail("expected exception, but didn't get it");
+    } catch (U2FException expected) {
+    }
+  }
+
+  private X509Certificate generateAttestationCertificate(KeyPair issuerKeyPair,
+      X509Certificate issuerCertificate) throws Exception {
+    return generateCertificate(new X500Principal("CN=Test Attestation"),
+        generateKeyPair().getPublic(), CA_NAME, issuerKeyPair, issuerCertificate);
+  }
+
+  /**
+   * Generates a certificate, which is a CA if it is self-signed. If {@code issuerCertificate} is
+   * given, its key identifier goes into the authority key identifier extension.
+   */
+  private static X509Certificate generateCertificate(X500Principal subject, PublicKey publicKey,
+      X500Principal issuer, KeyPair issuerKeyPair, X509Certificate issuerCertificate)
+      throws Exception {
+    boolean isCa = subject.equals(issuer) && publicKey.equals(issuerKeyPair.getPublic());
+    X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+    generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+    generator.setSubjectDN(subject);
+    generator.setIssuerDN(issuer);
+    generator.setNotBefore(new Date(System.currentTimeMillis() - 60000));
+    generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000));
+    generator.setPublicKey(publicKey);
+    generator.setSignatureAlgorithm("SHA256withECDSA");
+    if (isCa) {
+      generator.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+      generator.addExtension(Extension.subjectKeyIdentifier, false,
+          new SubjectKeyIdentifierStructure(publicKey));
+    }
+    if (issuerCertificate != null) {
+      generator.addExtension(Extension.authorityKeyIdentifier, false,
+          new AuthorityKeyIdentifierStructure(issuerCertificate));
+    }
+    return generator.generate(issuerKeyPair.getPrivate());
+  }
+
+  private static KeyPair generateKeyPair() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+    return keyPairGenerator.generateKeyPair();
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.data.SecurityKeyData;
+
+public class CachingDataStoreTest extends TestVectors {
+  @Mock DataStore mockDataStore;
+
+  private long nowNanos;
+  private CachingDataStore dataStore;
+  private SecurityKeyData securityKeyData;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nowNanos;
+      }
+    };
+    dataStore = new CachingDataStore(mockDataStore, CachingDataStore.DEFAULT_MAXIMUM_WEIGHT,
+        60, TimeUnit.SECONDS, ticker);
+    securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    List<SecurityKeyData> keys = ImmutableList.of(securityKeyData);
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(keys);
+  }
+
+  @Test
+  public void testReadsAreCached() {
+    assertEquals(ImmutableList.of(securityKeyData), dataStore.getSecurityKeyData(ACCOUNT_NAME));
+    assertSame(securityKeyData,
+        dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE.clone()));
+    assertNull(dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, new byte[] {1}));
+
+    verify(mockDataStore, times(1)).getSecurityKeyData(ACCOUNT_NAME);
+    assertEquals(1, dataStore.stats().missCount());
+    assertEquals(2, dataStore.stats().hitCount());
+  }
+
+  @Test
+  public void testWritesInvalidate() {
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+    verify(mockDataStore).addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    when(mockDataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5)).thenReturn(true);
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    dataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX);
+    verify(mockDataStore).removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX);
+
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    verify(mockDataStore, times(4)).getSecurityKeyData(ACCOUNT_NAME);
+  }
+
+  @Test
+  public void testExpiry() {
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    nowNanos += TimeUnit.SECONDS.toNanos(59);
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    verify(mockDataStore, times(1)).getSecurityKeyData(ACCOUNT_NAME);
+
+    nowNanos += TimeUnit.SECONDS.toNanos(1);
+    dataStore.getSecurityKeyData(ACCOUNT_NAME);
+    verify(mockDataStore, times(2)).getSecurityKeyData(ACCOUNT_NAME);
+  }
+}
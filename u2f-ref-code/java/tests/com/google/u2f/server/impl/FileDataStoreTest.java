@@ -0,0 +1,177 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SecurityKeyData.Transports;
+
+public class FileDataStoreTest extends TestVectors {
+  @Mock SessionIdGenerator mockSessionIdGenerator;
+
+  private File file;
+  private FileDataStore dataStore;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+    file = File.createTempFile("security-keys", ".log");
+    file.delete();
+    dataStore = open();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dataStore.close();
+    file.delete();
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    SecurityKeyData securityKeyData = new SecurityKeyData(1234L,
+        ImmutableList.of(Transports.USB, Transports.NFC), KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+        VENDOR_CERTIFICATE, 0);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE_2,
+        USER_PUBLIC_KEY_2, VENDOR_CERTIFICATE, 0));
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 7));
+    dataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_2);
+
+    reopen();
+
+    assertEquals(1, dataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    SecurityKeyData reloaded = dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE);
+    assertEquals(1234L, reloaded.getEnrollmentTime());
+    assertEquals(ImmutableList.of(Transports.USB, Transports.NFC), reloaded.getTransports());
+    assertEquals(VENDOR_CERTIFICATE, reloaded.getAttestationCertificate());
+    assertEquals(7, reloaded.getCounter());
+    assertNull(dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE_2));
+  }
+
+  @Test
+  public void testReopen_corruptTail() throws Exception {
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE,
+        USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
+    dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 7);
+    dataStore.close();
+
+    // flip a byte in the last record, the counter update
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    long end = findEndOfRecords(randomAccessFile);
+    randomAccessFile.seek(end - 6);
+    randomAccessFile.write(randomAccessFile.read() ^ 0xFF);
+    randomAccessFile.close();
+
+    dataStore = open();
+    assertEquals(0,
+        dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+    // appends go where the corrupt record was
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 3));
+    reopen();
+    assertEquals(3,
+        dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    dataStore.close();
+    dataStore = new FileDataStore(file, new MemorySessionStore(mockSessionIdGenerator),
+        4096 /* mappedChunkSize */, 16 /* compactionMinRecords */);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE,
+        USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
+    // enough counter updates to compact several times
+    for (int counter = 1; counter <= 500; counter++) {
+      assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, counter));
+    }
+    assertFalse(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 500));
+    // 500 counter records would not fit into one mapped chunk
+    assertEquals(4096, file.length());
+
+    reopen();
+
+    assertEquals(1, dataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    assertEquals(500,
+        dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+  }
+
+  @Test
+  public void testReopen_severalChunks() throws Exception {
+    dataStore.close();
+    dataStore = new FileDataStore(file, new MemorySessionStore(mockSessionIdGenerator),
+        1024 /* mappedChunkSize */, Integer.MAX_VALUE /* compactionMinRecords */);
+    // records straddle the chunk boundaries
+    for (int i = 0; i < 100; i++) {
+      dataStore.addSecurityKeyData("account" + i, new SecurityKeyData(i, KEY_HANDLE,
+          USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
+    }
+    assertTrue(dataStore.advanceCounterIfGreater("account99", KEY_HANDLE, 7));
+    assertTrue(file.length() > 10 * 1024);
+
+    reopen();
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, dataStore.getSecurityKeyDataByKeyHandle("account" + i, KEY_HANDLE)
+          .getEnrollmentTime());
+    }
+    assertEquals(7,
+        dataStore.getSecurityKeyDataByKeyHandle("account99", KEY_HANDLE).getCounter());
+  }
+
+  @Test
+  public void testReopen_interruptedCompaction() throws Exception {
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE,
+        USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
+    dataStore.compact();
+    dataStore.close();
+    // as if the log was deleted and the process died before the snapshot was renamed
+    File snapshot = new File(file.getPath() + ".compact");
+    assertTrue(file.renameTo(snapshot));
+
+    dataStore = open();
+
+    assertEquals(1, dataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    assertFalse(snapshot.exists());
+  }
+
+  private FileDataStore open() throws Exception {
+    return new FileDataStore(file, mockSessionIdGenerator);
+  }
+
+  private void reopen() throws Exception {
+    dataStore.close();
+    dataStore = open();
+  }
+
+  /** The offset after the last record: records are a length, the record and a 4-byte CRC. */
+  private static long findEndOfRecords(RandomAccessFile randomAccessFile) throws Exception {
+    long position = 8;
+    while (true) {
+      randomAccessFile.seek(position);
+      int length = randomAccessFile.readInt();
+      if (length == 0) {
+        return position;
+      }
+      position += 4 + length + 4;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class GroupCommitTest {
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong durable = new AtomicLong();
+  private final AtomicInteger syncs = new AtomicInteger();
+  private final GroupCommit groupCommit = new GroupCommit(new GroupCommit.Syncable() {
+    @Override
+    public long sync() {
+      long synced = appended.get();
+      syncs.incrementAndGet();
+      durable.set(synced);
+      return synced;
+    }
+  }, 1, TimeUnit.MILLISECONDS, 8 /* maxBatch */);
+
+  @Test
+  public void testAwaitDurable() {
+    groupCommit.awaitDurable(appended.incrementAndGet());
+    assertEquals(1, durable.get());
+    assertEquals(1, syncs.get());
+
+    // already durable
+    groupCommit.awaitDurable(1);
+    assertEquals(1, syncs.get());
+  }
+
+  @Test
+  public void testAwaitDurable_concurrent() throws Exception {
+    final int writes = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Boolean>> futures = Lists.newArrayList();
+    for (int t = 0; t < 8; t++) {
+      futures.add(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          boolean allDurable = true;
+          for (int i = 0; i < writes; i++) {
+            long sequence = appended.incrementAndGet();
+            groupCommit.awaitDurable(sequence);
+            allDurable &= durable.get() >= sequence;
+          }
+          return allDurable;
+        }
+      }));
+    }
+    for (Future<Boolean> future : futures) {
+      assertTrue(future.get());
+    }
+    executor.shutdown();
+
+    // concurrent writers share syncs
+    assertTrue(syncs.get() < 8 * writes);
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.SessionStore;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SecurityKeyData.Transports;
+
+public class JdbcDataStoreTest extends TestVectors {
+  @Mock JdbcConnectionPool.ConnectionFactory mockConnectionFactory;
+  @Mock Connection mockConnection;
+  @Mock PreparedStatement mockStatement;
+  @Mock SessionStore mockSessionStore;
+
+  private JdbcDataStore dataStore;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+    when(mockConnectionFactory.connect()).thenReturn(mockConnection);
+    when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+    dataStore = new JdbcDataStore(mockConnectionFactory, mockSessionStore, 1);
+  }
+
+  @Test
+  public void testAdvanceCounterIfGreater() throws Exception {
+    when(mockStatement.executeUpdate()).thenReturn(1, 0);
+
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+    assertFalse(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+
+    // one conditional update per call, on one connection that prepared it once
+    verify(mockConnectionFactory, times(1)).connect();
+    verify(mockConnection, times(1)).prepareStatement(startsWith("UPDATE"));
+    verify(mockStatement, times(2)).setObject(1, 5);
+    verify(mockStatement, times(2)).setObject(3, Base64.encodeBase64URLSafeString(KEY_HANDLE));
+    verify(mockStatement, times(2)).setObject(4, 5);
+    verify(mockConnection, times(2)).commit();
+  }
+
+  @Test
+  public void testFailedConnectionIsDiscarded() throws Exception {
+    when(mockStatement.executeUpdate()).thenThrow(new SQLException("lost")).thenReturn(1);
+
+    try {
+      dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5);
+      fail("expected a RuntimeException");
+    } catch (RuntimeException expected) {
+    }
+    verify(mockConnection).rollback();
+    verify(mockConnection).close();
+    verify(mockConnection, never()).commit();
+
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+    verify(mockConnectionFactory, times(2)).connect();
+  }
+
+  @Test
+  public void testAddSecurityKeyDataIsBatched() throws Exception {
+    ListMultimap<String, SecurityKeyData> keys = ArrayListMultimap.create();
+    keys.put(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+        VENDOR_CERTIFICATE, 0));
+    keys.put(ACCOUNT_NAME, new SecurityKeyData(0L, KEY_HANDLE_2, USER_PUBLIC_KEY_2,
+        VENDOR_CERTIFICATE, 0));
+    keys.put("other@example.com", new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+        VENDOR_CERTIFICATE, 0));
+
+    dataStore.addSecurityKeyData(keys);
+
+    // the shared certificate is inserted once, then the keys in one transaction
+    verify(mockStatement, times(1)).executeUpdate();
+    verify(mockStatement, times(6)).addBatch();
+    verify(mockStatement, times(2)).executeBatch();
+    verify(mockConnection, times(2)).commit();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    JdbcDataStore h2DataStore = new JdbcDataStore(
+        "jdbc:h2:mem:" + getClass().getSimpleName() + ";DB_CLOSE_DELAY=-1", new Properties(),
+        mockSessionStore, 2 /* maxConnections */);
+    try {
+      h2DataStore.createSchema();
+      h2DataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(1234L,
+          ImmutableList.of(Transports.USB, Transports.NFC), KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+          VENDOR_CERTIFICATE, 0));
+      h2DataStore.addSecurityKeyData(ACCOUNT_NAME, new SecurityKeyData(5678L, KEY_HANDLE_2,
+          USER_PUBLIC_KEY_2, VENDOR_CERTIFICATE, 0));
+
+      List<SecurityKeyData> keys = h2DataStore.getSecurityKeyData(ACCOUNT_NAME);
+      assertEquals(2, keys.size());
+      SecurityKeyData key = h2DataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE);
+      assertEquals(1234L, key.getEnrollmentTime());
+      assertEquals(ImmutableList.of(Transports.USB, Transports.NFC), key.getTransports());
+      assertArrayEquals(USER_PUBLIC_KEY_SIGN_HEX, key.getPublicKey());
+      assertEquals(VENDOR_CERTIFICATE, key.getAttestationCertificate());
+      assertTrue(h2DataStore.getSecurityKeyData("other@example.com").isEmpty());
+
+      assertTrue(h2DataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+      assertFalse(h2DataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+      assertFalse(h2DataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 4));
+      assertEquals(5,
+          h2DataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+
+      h2DataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX);
+      assertNull(h2DataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE));
+      assertEquals(1, h2DataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    } finally {
+      h2DataStore.close();
+    }
+  }
+}
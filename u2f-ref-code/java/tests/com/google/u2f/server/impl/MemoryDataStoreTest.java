@@ -0,0 +1,164 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+public class MemoryDataStoreTest extends TestVectors {
+  @Mock SessionIdGenerator mockSessionIdGenerator;
+
+  private MemoryDataStore dataStore;
+  private SecurityKeyData securityKeyData;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+    dataStore = new MemoryDataStore(mockSessionIdGenerator);
+    securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+  }
+
+  @Test
+  public void testGetSecurityKeyDataByKeyHandle() {
+    assertSame(securityKeyData,
+        dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE.clone()));
+    assertNull(dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, new byte[] {1}));
+    assertNull(dataStore.getSecurityKeyDataByKeyHandle("other@example.com", KEY_HANDLE));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testUpdateSecurityKeyCounter() {
+    dataStore.updateSecurityKeyCounter(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX.clone(), 7);
+    assertEquals(7, securityKeyData.getCounter());
+  }
+
+  @Test
+  public void testAdvanceCounterIfGreater() {
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE.clone(), 5));
+    assertEquals(5, securityKeyData.getCounter());
+
+    assertFalse(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE.clone(), 5));
+    assertFalse(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE.clone(), 4));
+    assertFalse(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, new byte[] {1}, 9));
+    assertEquals(5, securityKeyData.getCounter());
+  }
+
+  @Test
+  public void testConsumeSessionData() {
+    when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn(SESSION_ID);
+    dataStore.storeSessionData(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+
+    assertNotNull(dataStore.getSignSessionData(SESSION_ID));
+    assertNotNull(dataStore.consumeSignSessionData(SESSION_ID));
+    assertNull(dataStore.consumeSignSessionData(SESSION_ID));
+    assertEquals(0, dataStore.getSessionCount());
+  }
+
+  @Test
+  public void testSessionExpiry() {
+    final long[] nanos = {0};
+    Ticker ticker = new Ticker() {
+      @Override
+      public long read() {
+        return nanos[0];
+      }
+    };
+    dataStore = new MemoryDataStore(mockSessionIdGenerator, 4 /* lockStripes */,
+        60, TimeUnit.SECONDS, ticker);
+    when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn("1", "2");
+    dataStore.storeSessionData(new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL,
+        SERVER_CHALLENGE_ENROLL));
+
+    nanos[0] = TimeUnit.SECONDS.toNanos(60);
+    assertNull(dataStore.getEnrollSessionData("1"));
+    // storing another session sweeps the expired one
+    dataStore.storeSessionData(new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL,
+        SERVER_CHALLENGE_ENROLL));
+    assertEquals(1, dataStore.getSessionCount());
+    assertNotNull(dataStore.consumeEnrollSessionData("2"));
+  }
+
+  @Test
+  public void testRemoveSecurityKey() {
+    dataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX.clone());
+
+    assertEquals(0, dataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    assertNull(dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE));
+  }
+
+  @Test
+  public void testDuplicateKeyHandle_firstRegistrationWins() {
+    SecurityKeyData duplicate = new SecurityKeyData(1L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+        VENDOR_CERTIFICATE, 0);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, duplicate);
+
+    assertSame(securityKeyData, dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE));
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, 5));
+    assertEquals(5, securityKeyData.getCounter());
+    assertEquals(0, duplicate.getCounter());
+
+    dataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX);
+    assertSame(duplicate, dataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE));
+  }
+
+  @Test
+  public void testAddSecurityKeyData_concurrent() throws Exception {
+    final int keysPerThread = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = Lists.newArrayList();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < keysPerThread; i++) {
+            byte[] keyHandle = {(byte) thread, (byte) i};
+            dataStore.addSecurityKeyData(ACCOUNT_NAME,
+                new SecurityKeyData(0L, keyHandle, keyHandle, VENDOR_CERTIFICATE, 0));
+            dataStore.getSecurityKeyData(ACCOUNT_NAME);
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    // no registration is lost to a concurrent one
+    assertEquals(1 + 4 * keysPerThread, dataStore.getSecurityKeyData(ACCOUNT_NAME).size());
+    assertTrue(dataStore.advanceCounterIfGreater(ACCOUNT_NAME, new byte[] {3, 99}, 1));
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SignSessionData;
+
+public class OffHeapSessionStoreTest extends TestVectors {
+  private long nanos;
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos;
+    }
+  };
+  // small slabs, so that sessions span slabs and records chain across them
+  private final OffHeapSessionStore sessionStore =
+      new OffHeapSessionStore(2 /* shards */, 4 /* recordsPerSlab */, 60, TimeUnit.SECONDS, ticker);
+
+  @Test
+  public void testEnrollSession() {
+    String sessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL, 1234L));
+
+    EnrollSessionData sessionData = sessionStore.getSessionData(sessionId);
+    assertFalse(sessionData instanceof SignSessionData);
+    assertEquals(ACCOUNT_NAME, sessionData.getAccountName());
+    assertEquals(APP_ID_ENROLL, sessionData.getAppId());
+    assertArrayEquals(SERVER_CHALLENGE_ENROLL, sessionData.getChallenge());
+    assertEquals(1234L, sessionData.getCreationTime());
+  }
+
+  @Test
+  public void testSignSession_publicKey() {
+    String sessionId = sessionStore.storeSessionData(new SignSessionData(ACCOUNT_NAME,
+        APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+
+    SignSessionData sessionData = (SignSessionData) sessionStore.getSessionData(sessionId);
+    assertArrayEquals(USER_PUBLIC_KEY_SIGN_HEX, sessionData.getPublicKey());
+    assertNull(sessionData.getKeyHandles());
+  }
+
+  @Test
+  public void testSignSession_keyHandles() {
+    List<byte[]> keyHandles = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      byte[] keyHandle = KEY_HANDLE.clone();
+      keyHandle[0] = (byte) i;
+      keyHandles.add(keyHandle);
+    }
+    String sessionId = sessionStore.storeSessionData(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, keyHandles));
+
+    SignSessionData sessionData = (SignSessionData) sessionStore.consumeSessionData(sessionId);
+    assertEquals(10, sessionData.getKeyHandles().size());
+    for (int i = 0; i < 10; i++) {
+      assertArrayEquals(keyHandles.get(i), sessionData.getKeyHandles().get(i));
+    }
+  }
+
+  @Test
+  public void testConsumeSessionData() {
+    String sessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+
+    assertEquals(ACCOUNT_NAME, sessionStore.consumeSessionData(sessionId).getAccountName());
+    assertNull(sessionStore.consumeSessionData(sessionId));
+    assertEquals(0, sessionStore.size());
+
+    // the freed record is reused, but the old session id does not address the new session
+    String otherSessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    assertNull(sessionStore.getSessionData(sessionId));
+    assertEquals(ACCOUNT_NAME, sessionStore.getSessionData(otherSessionId).getAccountName());
+  }
+
+  @Test
+  public void testGetSessionData_invalidSessionId() {
+    String sessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    char[] tampered = sessionId.toCharArray();
+    tampered[tampered.length - 2] = (tampered[tampered.length - 2] == 'A') ? 'B' : 'A';
+
+    assertNull(sessionStore.getSessionData(new String(tampered)));
+    assertNull(sessionStore.getSessionData("AAAAAAAAAAAAAAAAAAAAAA"));
+    assertNull(sessionStore.getSessionData("short"));
+  }
+
+  @Test
+  public void testExpiry() {
+    String sessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    nanos += TimeUnit.SECONDS.toNanos(60);
+
+    assertNull(sessionStore.getSessionData(sessionId));
+    assertEquals(0, sessionStore.size());
+
+    // expired sessions are reclaimed as new ones are stored
+    for (int i = 0; i < 20; i++) {
+      sessionStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    }
+    nanos += TimeUnit.SECONDS.toNanos(60);
+    for (int i = 0; i < 5; i++) {
+      sessionStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    }
+    assertTrue(sessionStore.size() < 25);
+  }
+
+  @Test
+  public void testFullStore_capacityReturnsAfterExpiry() {
+    // a single shard of two slabs, eight records
+    OffHeapSessionStore sessionStore = new OffHeapSessionStore(1 /* shards */,
+        4 /* recordsPerSlab */, 2 /* maxSlabsPerShard */, 60, TimeUnit.SECONDS, ticker);
+    for (int i = 0; i < 7; i++) {
+      sessionStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    }
+    List<byte[]> keyHandles = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      keyHandles.add(KEY_HANDLE);
+    }
+
+    // a session that needs several records does not take the last one
+    try {
+      sessionStore.storeSessionData(
+          new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, keyHandles));
+      fail("expected the store to be full");
+    } catch (IllegalStateException expected) {
+    }
+    String sessionId = sessionStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    assertEquals(ACCOUNT_NAME, sessionStore.getSessionData(sessionId).getAccountName());
+    assertEquals(8, sessionStore.size());
+    try {
+      sessionStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+      fail("expected the store to be full");
+    } catch (IllegalStateException expected) {
+    }
+
+    nanos += TimeUnit.SECONDS.toNanos(60);
+    sessionId = sessionStore.storeSessionData(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, keyHandles));
+    assertEquals(10,
+        ((SignSessionData) sessionStore.getSessionData(sessionId)).getKeyHandles().size());
+    assertEquals(1, sessionStore.size());
+    for (int i = 0; i < 2; i++) {
+      sessionStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.u2f.U2FException;
+
+public class OriginMatcherTest {
+  private final OriginMatcher originMatcher = new OriginMatcher(
+      ImmutableSet.of("https://example.com", "http://localhost:8080/", "https://*.example.org"),
+      ImmutableMap.of("https://tenant.com/app.json", ImmutableSet.of("https://tenant.com")));
+
+  @Test
+  public void testMatches() throws Exception {
+    assertTrue(originMatcher.matches(null, "https://example.com"));
+    assertTrue(originMatcher.matches(null, "HTTPS://Example.COM/path?query"));
+    assertTrue(originMatcher.matches(null, "http://localhost:8080"));
+
+    assertFalse(originMatcher.matches(null, "http://example.com"));
+    assertFalse(originMatcher.matches(null, "https://example.com:8443"));
+    assertFalse(originMatcher.matches(null, "https://www.example.com"));
+    assertFalse(originMatcher.matches(null, "http://localhost"));
+  }
+
+  @Test
+  public void testMatches_wildcard() throws Exception {
+    assertTrue(originMatcher.matches(null, "https://a.example.org"));
+    assertTrue(originMatcher.matches(null, "https://a.b.example.org/"));
+
+    assertFalse(originMatcher.matches(null, "https://example.org"));
+    assertFalse(originMatcher.matches(null, "https://a.example.org:8443"));
+    assertFalse(originMatcher.matches(null, "https://aexample.org"));
+    assertFalse(originMatcher.matches(null, "http://a.example.org"));
+  }
+
+  @Test
+  public void testMatches_perAppId() throws Exception {
+    assertTrue(originMatcher.matches("https://tenant.com/app.json", "https://tenant.com"));
+    assertTrue(originMatcher.matches("https://tenant.com/app.json", "https://example.com"));
+
+    assertFalse(originMatcher.matches(null, "https://tenant.com"));
+    assertFalse(originMatcher.matches("https://example.com", "https://tenant.com"));
+  }
+
+  @Test
+  public void testMatches_malformed() throws Exception {
+    String[] malformed = {"example.com", "://example.com", "https://", "https:///path",
+        "https://user@example.com"};
+    for (String origin : malformed) {
+      try {
+        originMatcher.matches(null, origin);
+        fail("expected exception for " + origin);
+      } catch (U2FException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testCanonicalizeOrigin() {
+    assertEquals("https://example.com:8443",
+        OriginMatcher.canonicalizeOrigin("https://Example.com:8443/foo#bar"));
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.PublicKey;
+
+import org.junit.Test;
+
+import com.google.u2f.TestVectors;
+
+public class PublicKeyCacheTest extends TestVectors {
+  private final PublicKeyCache publicKeyCache = new PublicKeyCache();
+  private final BouncyCastleCrypto crypto = new BouncyCastleCrypto(publicKeyCache);
+
+  @Test
+  public void testRepeatedKeyIsDecodedOnce() throws Exception {
+    PublicKey publicKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX.clone());
+
+    assertSame(publicKey, crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX.clone()));
+    assertEquals(1, publicKeyCache.stats().missCount());
+    assertEquals(1, publicKeyCache.stats().hitCount());
+    assertEquals(USER_PUBLIC_KEY_SIGN, publicKey);
+  }
+
+  @Test
+  public void testDifferentEncodingsDoNotCollide() throws Exception {
+    PublicKey signKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    PublicKey enrollKey = crypto.decodePublicKey(USER_PUBLIC_KEY_ENROLL_HEX);
+
+    assertNotSame(signKey, enrollKey);
+    assertEquals(USER_PUBLIC_KEY_SIGN, signKey);
+    assertEquals(USER_PUBLIC_KEY_ENROLL, enrollKey);
+    assertEquals(2, publicKeyCache.size());
+  }
+
+  @Test
+  public void testCallerMutationDoesNotCorruptCache() throws Exception {
+    byte[] encoding = USER_PUBLIC_KEY_SIGN_HEX.clone();
+    PublicKey publicKey = crypto.decodePublicKey(encoding);
+    encoding[encoding.length - 1] ^= 1;
+
+    assertNull(publicKeyCache.getIfPresent(encoding));
+    assertSame(publicKey, publicKeyCache.getIfPresent(USER_PUBLIC_KEY_SIGN_HEX));
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SignSessionData;
+
+public class SessionTokenCodecTest extends TestVectors {
+  private static final byte[] KEY_1 = new byte[16];
+  private static final byte[] KEY_2 = new byte[32];
+  static {
+    KEY_2[0] = 1;
+  }
+
+  private final SessionTokenCodec codec =
+      new SessionTokenCodec(ImmutableMap.of(1, KEY_1), 1);
+
+  @Test
+  public void testEnrollSession() {
+    String token = codec.encode(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL, 1234L));
+
+    EnrollSessionData sessionData = codec.decode(token);
+    assertFalse(sessionData instanceof SignSessionData);
+    assertEquals(ACCOUNT_NAME, sessionData.getAccountName());
+    assertEquals(APP_ID_ENROLL, sessionData.getAppId());
+    assertArrayEquals(SERVER_CHALLENGE_ENROLL, sessionData.getChallenge());
+    assertEquals(1234L, sessionData.getCreationTime());
+  }
+
+  @Test
+  public void testSignSessions() {
+    SignSessionData sessionData = (SignSessionData) codec.decode(codec.encode(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            ImmutableList.of(KEY_HANDLE, KEY_HANDLE_2))));
+    assertNull(sessionData.getPublicKey());
+    assertTrue(sessionData.containsKeyHandle(KEY_HANDLE));
+    assertTrue(sessionData.containsKeyHandle(KEY_HANDLE_2));
+    assertEquals(2, sessionData.getKeyHandles().size());
+
+    sessionData = (SignSessionData) codec.decode(codec.encode(new SignSessionData(
+        ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX)));
+    assertArrayEquals(USER_PUBLIC_KEY_SIGN_HEX, sessionData.getPublicKey());
+    assertNull(sessionData.getKeyHandles());
+  }
+
+  @Test
+  public void testTamperedTokenIsRejected() {
+    String token = codec.encode(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    byte[] data = Base64.decodeBase64(token);
+    for (int i = 0; i < data.length; i++) {
+      data[i] ^= 1;
+      assertNull(codec.decode(Base64.encodeBase64URLSafeString(data)));
+      data[i] ^= 1;
+    }
+    assertNull(codec.decode("AQE"));
+    assertNotNull(codec.decode(Base64.encodeBase64URLSafeString(data)));
+  }
+
+  @Test
+  public void testKeyRotation() {
+    String oldToken = codec.encode(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    Map<Integer, byte[]> keys = ImmutableMap.of(1, KEY_1, 2, KEY_2);
+    SessionTokenCodec rotated = new SessionTokenCodec(keys, 2);
+    String newToken = rotated.encode(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+
+    assertNotNull(rotated.decode(oldToken));
+    assertNotNull(rotated.decode(newToken));
+    // tokens of the new key are unknown to servers that do not have it yet
+    assertNull(codec.decode(newToken));
+  }
+}
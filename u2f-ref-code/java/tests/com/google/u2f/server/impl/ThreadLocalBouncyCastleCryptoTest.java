@@ -0,0 +1,81 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.u2f.TestVectors;
+
+public class ThreadLocalBouncyCastleCryptoTest extends TestVectors {
+  private final ThreadLocalBouncyCastleCrypto crypto = new ThreadLocalBouncyCastleCrypto();
+
+  @Test
+  public void testEnginesAreReusedOnOneThread() throws Exception {
+    assertSame(crypto.getSignatureEngine(), crypto.getSignatureEngine());
+    assertSame(crypto.getSha256Engine(), crypto.getSha256Engine());
+    assertSame(crypto.getDigestBuffer(), crypto.getDigestBuffer());
+  }
+
+  @Test
+  public void testEnginesAreNotSharedBetweenThreads() throws Exception {
+    Signature signature = crypto.getSignatureEngine();
+    MessageDigest digest = crypto.getSha256Engine();
+    byte[] buffer = crypto.getDigestBuffer();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertNotSame(signature, executor.submit(new Callable<Signature>() {
+        @Override
+        public Signature call() throws Exception {
+          return crypto.getSignatureEngine();
+        }
+      }).get());
+      assertNotSame(digest, executor.submit(new Callable<MessageDigest>() {
+        @Override
+        public MessageDigest call() throws Exception {
+          return crypto.getSha256Engine();
+        }
+      }).get());
+      assertNotSame(buffer, executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return crypto.getDigestBuffer();
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDigestIsResetAfterAbandonedCall() throws Exception {
+    // a call that failed halfway leaves input in the engine
+    crypto.getSha256Engine().update(new byte[] {1, 2, 3});
+
+    assertArrayEquals(BROWSER_DATA_SIGN_SHA256, crypto.computeSha256(BROWSER_DATA_SIGN.getBytes()));
+    assertArrayEquals(BROWSER_DATA_SIGN_SHA256, crypto.computeSha256(BROWSER_DATA_SIGN.getBytes()));
+  }
+
+  @Test
+  public void testRepeatedVerification() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(crypto.verifySignature(USER_PUBLIC_KEY_SIGN, EXPECTED_AUTHENTICATE_SIGNED_BYTES,
+          SIGNATURE_AUTHENTICATE));
+    }
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class TimingWheelTest {
+  private static class FakeTicker extends Ticker {
+    long nanos = 12345;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  private final FakeTicker ticker = new FakeTicker();
+  private final List<String> expired = Lists.newArrayList();
+  // 4 slots per level and 2 levels: 16 ticks before values overflow
+  private final TimingWheel<String> timingWheel = new TimingWheel<String>(ticker,
+      1, TimeUnit.SECONDS, 2 /* slotBits */, 2 /* levels */,
+      new TimingWheel.Listener<String>() {
+        @Override
+        public void expired(String value) {
+          expired.add(value);
+        }
+      });
+
+  @Test
+  public void testAdvance() {
+    timingWheel.schedule("a", 2, TimeUnit.SECONDS);
+    timingWheel.schedule("b", 2500, TimeUnit.MILLISECONDS);
+    timingWheel.advance();
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(0, timingWheel.advance());
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(1, timingWheel.advance());
+    assertEquals(ImmutableList.of("a"), expired);
+    // never early, at most one tick late
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(1, timingWheel.advance());
+    assertEquals(0, timingWheel.size());
+  }
+
+  @Test
+  public void testAdvance_cascades() {
+    for (int seconds = 1; seconds <= 40; seconds++) {
+      timingWheel.schedule(Integer.toString(seconds), seconds, TimeUnit.SECONDS);
+    }
+
+    for (int seconds = 1; seconds <= 40; seconds++) {
+      ticker.advance(1, TimeUnit.SECONDS);
+      timingWheel.advance();
+      assertEquals(Integer.toString(seconds), expired.get(expired.size() - 1));
+      assertEquals(seconds, expired.size());
+    }
+  }
+
+  @Test
+  public void testAdvance_afterIdleGap() {
+    timingWheel.schedule("a", 30, TimeUnit.SECONDS);
+    ticker.advance(1, TimeUnit.HOURS);
+    timingWheel.schedule("b", 5, TimeUnit.SECONDS);
+
+    assertEquals(1, timingWheel.advance());
+    ticker.advance(5, TimeUnit.SECONDS);
+    assertEquals(1, timingWheel.advance());
+    assertEquals(ImmutableList.of("a", "b"), expired);
+  }
+}
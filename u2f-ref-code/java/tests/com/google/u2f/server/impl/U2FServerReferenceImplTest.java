@@ -7,9 +7,14 @@
 package com.google.u2f.server.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.anyCollectionOf;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -18,24 +23,32 @@ import java.security.cert.X509Certificate;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.u2f.TestVectors;
 import com.google.u2f.U2FException;
+import com.google.u2f.server.BatchDataStore;
 import com.google.u2f.server.ChallengeGenerator;
 import com.google.u2f.server.Crypto;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.SessionIdGenerator;
 import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.data.CounterUpdate;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SecurityKeyData.Transports;
+import com.google.u2f.server.data.SignResult;
 import com.google.u2f.server.data.SignSessionData;
 import com.google.u2f.server.messages.RegisteredKey;
 import com.google.u2f.server.messages.RegistrationRequest;
@@ -47,6 +60,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
   @Mock ChallengeGenerator mockChallengeGenerator;
   @Mock SessionIdGenerator mockSessionIdGenerator;
   @Mock DataStore mockDataStore;
+  @Mock BatchDataStore mockBatchDataStore;
 
   private final Crypto cryto = new BouncyCastleCrypto();
   private U2FServer u2fServer;
@@ -65,6 +79,8 @@ public class U2FServerReferenceImplTest extends TestVectors {
     when(mockDataStore.getTrustedCertificates()).thenReturn(trustedCertificates);
     when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
         ImmutableList.of(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0)));
+    when(mockDataStore.advanceCounterIfGreater(anyString(), any(byte[].class), anyInt()))
+        .thenReturn(true);
   }
 
   @Test
@@ -91,7 +107,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse_noTransports() throws U2FException {
-	  when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+	  when(mockDataStore.consumeEnrollSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, TRUSTED_DOMAINS);
@@ -107,7 +123,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse_oneTransport() throws U2FException {
-    when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeEnrollSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     HashSet<X509Certificate> trustedCertificates = new HashSet<X509Certificate>();
     trustedCertificates.add(TRUSTED_CERTIFICATE_ONE_TRANSPORT);
@@ -129,7 +145,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse_multipleTransports() throws U2FException {
-    when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeEnrollSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     HashSet<X509Certificate> trustedCertificates = new HashSet<X509Certificate>();
     trustedCertificates.add(TRUSTED_CERTIFICATE_MULTIPLE_TRANSPORTS);
@@ -153,7 +169,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse_malformedTransports() throws U2FException {
-    when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeEnrollSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     HashSet<X509Certificate> trustedCertificates = new HashSet<X509Certificate>();
     trustedCertificates.add(TRUSTED_CERTIFICATE_MALFORMED_TRANSPORTS_EXTENSION);
@@ -173,7 +189,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse2() throws U2FException {
-    when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeEnrollSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     HashSet<X509Certificate> trustedCertificates = new HashSet<X509Certificate>();
     trustedCertificates.add(VENDOR_CERTIFICATE);
@@ -200,11 +216,49 @@ public class U2FServerReferenceImplTest extends TestVectors {
     U2fSignRequest signRequest = u2fServer.getSignRequest(ACCOUNT_NAME, APP_ID_SIGN);
     assertEquals(new RegisteredKey("U2F_V2", KEY_HANDLE_BASE64, null /* transports */, APP_ID_SIGN,
        SESSION_ID), signRequest.getRegisteredKeys().get(0));
+    ArgumentCaptor<EnrollSessionData> sessionData =
+        ArgumentCaptor.forClass(EnrollSessionData.class);
+    verify(mockDataStore).storeSessionData(sessionData.capture());
+    assertTrue(((SignSessionData) sessionData.getValue()).containsKeyHandle(KEY_HANDLE));
+  }
+
+  @Test
+  public void testProcessSignResponse_keyHandleSession() throws U2FException {
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(new SignSessionData(
+        ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, ImmutableList.of(KEY_HANDLE)));
+    SecurityKeyData securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    when(mockDataStore.getSecurityKeyDataByKeyHandle(ACCOUNT_NAME, KEY_HANDLE))
+        .thenReturn(securityKeyData);
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    assertEquals(securityKeyData, u2fServer.processSignResponse(signResponse));
+    verify(mockDataStore).advanceCounterIfGreater(ACCOUNT_NAME, KEY_HANDLE, COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_keyHandleNotInSession() throws U2FException {
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(new SignSessionData(
+        ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, ImmutableList.of(new byte[] {1, 2})));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected exception, but didn't get it");
+    } catch(U2FException e) {
+      assertTrue(e.getMessage().contains("not part of this sign session"));
+    }
   }
 
   @Test
   public void testProcessSignResponse() throws U2FException {
-    when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(
         new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, TRUSTED_DOMAINS);
@@ -216,7 +270,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessSignResponse_badOrigin() throws U2FException {
-    when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(
         new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, ImmutableSet.of("some-other-domain.com"));
@@ -231,11 +285,105 @@ public class U2FServerReferenceImplTest extends TestVectors {
     }
   }
 
+  @Test
+  public void testProcessSignResponses_withoutBatchDataStore() throws U2FException {
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+
+    List<SignResult> results = u2fServer.processSignResponses(ImmutableList.of(
+        new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+            BROWSER_DATA_SIGN_BASE64, SESSION_ID),
+        new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+            BROWSER_DATA_SIGN_BASE64, "unknown_session_id")));
+
+    assertEquals(2, results.size());
+    assertTrue(results.get(0).isSuccess());
+    assertFalse(results.get(1).isSuccess());
+    assertTrue(results.get(1).getException().getMessage().contains("Unknown session_id"));
+  }
+
+  @Test
+  public void testProcessSignResponses_batchDataStore() throws U2FException {
+    SecurityKeyData securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    SignSessionData sessionData = new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+        SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX);
+    when(mockBatchDataStore.consumeSignSessionData(anyCollectionOf(String.class))).thenReturn(
+        ImmutableMap.of(SESSION_ID, sessionData, "session_id_2", sessionData));
+    when(mockBatchDataStore.getSecurityKeyData(anyCollectionOf(String.class))).thenReturn(
+        ImmutableMap.<String, List<SecurityKeyData>>of(ACCOUNT_NAME,
+            ImmutableList.of(securityKeyData)));
+    // the store applies the first counter update and rejects the replayed one
+    when(mockBatchDataStore.advanceCountersIfGreater(Matchers.<List<CounterUpdate>>any()))
+        .thenReturn(new boolean[] {true, false});
+    ExecutorService verificationExecutor = Executors.newFixedThreadPool(2);
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator, mockBatchDataStore, cryto,
+        TRUSTED_DOMAINS, new AppIdRegistry(cryto, ImmutableSet.of(APP_ID_SIGN)),
+        verificationExecutor);
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    // the second response replays the counter of the first one, in another session
+    List<SignResult> results = u2fServer.processSignResponses(ImmutableList.of(
+        signResponse,
+        new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+            BROWSER_DATA_SIGN_BASE64, "session_id_2"),
+        new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+            BROWSER_DATA_SIGN_BASE64, "unknown_session_id")));
+
+    assertEquals(securityKeyData, results.get(0).get());
+    assertTrue(results.get(1).getException().getMessage().contains("Counter value"));
+    assertTrue(results.get(2).getException().getMessage().contains("Unknown session_id"));
+    verify(mockBatchDataStore).advanceCountersIfGreater(
+        Matchers.<List<CounterUpdate>>argThat(new ArgumentMatcher<List<CounterUpdate>>() {
+          @Override
+          public boolean matches(Object argument) {
+            List<?> counterUpdates = (List<?>) argument;
+            return counterUpdates.size() == 2
+                && ((CounterUpdate) counterUpdates.get(0)).getNewCounterValue() == COUNTER_VALUE;
+          }
+        }));
+    verificationExecutor.shutdown();
+  }
+
+  @Test
+  public void testProcessSignResponses_sessionRedeemedOnce() throws U2FException {
+    SecurityKeyData securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    when(mockBatchDataStore.consumeSignSessionData(anyCollectionOf(String.class))).thenReturn(
+        ImmutableMap.of(SESSION_ID, new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+            SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX)));
+    when(mockBatchDataStore.getSecurityKeyData(anyCollectionOf(String.class))).thenReturn(
+        ImmutableMap.<String, List<SecurityKeyData>>of(ACCOUNT_NAME,
+            ImmutableList.of(securityKeyData)));
+    when(mockBatchDataStore.advanceCountersIfGreater(Matchers.<List<CounterUpdate>>any()))
+        .thenReturn(new boolean[] {true});
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator, mockBatchDataStore, cryto,
+        TRUSTED_DOMAINS, new AppIdRegistry(cryto, ImmutableSet.of(APP_ID_SIGN)));
+    SignResponse signResponse = new SignResponse(KEY_HANDLE_BASE64, SIGN_RESPONSE_DATA_BASE64,
+        BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    List<SignResult> results =
+        u2fServer.processSignResponses(ImmutableList.of(signResponse, signResponse));
+
+    assertEquals(securityKeyData, results.get(0).get());
+    assertTrue(results.get(1).getException().getMessage().contains("Unknown session_id"));
+    verify(mockBatchDataStore).advanceCountersIfGreater(
+        Matchers.<List<CounterUpdate>>argThat(new ArgumentMatcher<List<CounterUpdate>>() {
+          @Override
+          public boolean matches(Object argument) {
+            return ((List<?>) argument).size() == 1;
+          }
+        }));
+  }
+
   // @Test
   // TODO: put test back in once we have signature sample on a correct browserdata json
   // (currently, this test uses an enrollment browserdata during a signature)
   public void testProcessSignResponse2() throws U2FException {
-    when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
+    when(mockDataStore.consumeSignSessionData(SESSION_ID)).thenReturn(
         new SignSessionData(ACCOUNT_NAME, APP_ID_2, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_2));
     when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
         ImmutableList.of(new SecurityKeyData(0l, KEY_HANDLE_2, USER_PUBLIC_KEY_2, VENDOR_CERTIFICATE, 0)));
@@ -0,0 +1,107 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TracerTest {
+  private final Logger logger = Logger.getLogger(TracerTest.class.getName());
+  private final List<String> messages = Lists.newArrayList();
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  };
+  private final Tracer tracer = Tracer.getTracer(TracerTest.class);
+
+  /** Counts how often it is rendered. */
+  private static class Value {
+    int renderings;
+
+    @Override
+    public String toString() {
+      renderings++;
+      return "value";
+    }
+  }
+
+  @Before
+  public void setup() {
+    logger.setLevel(Level.FINER);
+    logger.setUseParentHandlers(false);
+    handler.setLevel(Level.ALL);
+    logger.addHandler(handler);
+  }
+
+  @After
+  public void tearDown() {
+    logger.removeHandler(handler);
+    logger.setUseParentHandlers(true);
+    logger.setLevel(null);
+    Tracer.setAccountSampling(1);
+  }
+
+  @Test
+  public void testBelowLevelIsNotRendered() {
+    Value value = new Value();
+
+    tracer.field(Level.FINEST, "account", "value", value);
+    tracer.event(Level.FINEST, "account", "event");
+
+    assertEquals(0, value.renderings);
+    assertTrue(messages.isEmpty());
+
+    tracer.field(Level.FINER, "account", "value", value);
+    tracer.field(Level.FINER, null, "bytes", new byte[] {0x01, (byte) 0xab});
+
+    assertEquals(1, value.renderings);
+    assertEquals(Lists.newArrayList("[account]   value: value", "  bytes: 01ab"), messages);
+  }
+
+  @Test
+  public void testSamplingIsStablePerAccount() {
+    Tracer.setAccountSampling(4);
+
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      String accountName = "account" + i;
+      boolean enabled = tracer.isEnabled(Level.FINE, accountName);
+      for (int j = 0; j < 3; j++) {
+        assertEquals(enabled, tracer.isEnabled(Level.FINE, accountName));
+      }
+      if (enabled) {
+        sampled++;
+      }
+    }
+    assertTrue(sampled > 0);
+    assertTrue(sampled < 100);
+    // records without an account are never sampled out
+    assertTrue(tracer.isEnabled(Level.FINE, null));
+    assertFalse(tracer.isEnabled(Level.FINEST, null));
+  }
+}